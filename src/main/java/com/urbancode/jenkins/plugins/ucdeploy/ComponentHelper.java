@@ -13,10 +13,21 @@ import hudson.model.TaskListener;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.http.impl.client.DefaultHttpClient;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -36,6 +47,23 @@ import com.urbancode.ud.client.ComponentClient;
  */
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class ComponentHelper {
+    /* Maximum number of component properties written at once */
+    private static final int PROPERTY_WRITE_CONCURRENCY = 8;
+
+    /* Milliseconds a component lookup is trusted */
+    private static final long COMPONENT_LOOKUP_TTL = 30 * 60 * 1000;
+
+    /* Component names of each application keyed by server, user and application name */
+    private static final ExpiringCache<String, Set<String>> applicationComponentNames =
+            new ExpiringCache<String, Set<String>>(COMPONENT_LOOKUP_TTL);
+
+    /* Component name to UUID lookups running in this JVM */
+    private static final SingleFlight<String, UUID> componentLookups = new SingleFlight<String, UUID>();
+
+    /* Application component list lookups running in this JVM */
+    private static final SingleFlight<String, Set<String>> applicationComponentLookups =
+            new SingleFlight<String, Set<String>>();
+
     private ApplicationClient appClient;
     private ComponentClient compClient;
     private TaskListener listener;
@@ -44,13 +72,19 @@ public class ComponentHelper {
     private int templateVersion = -1;
     private Boolean importAutomatically = false;
     private Boolean useVfs = true;
+    private String clientKey;
+    private URI ucdUrl;
+    private DefaultHttpClient httpClient;
 
-    public ComponentHelper(ApplicationClient appClient, ComponentClient compClient, TaskListener listener,
-            EnvVars envVars) {
-        this.appClient = appClient;
-        this.compClient = compClient;
+    public ComponentHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener, EnvVars envVars) {
+        appClient = new ApplicationClient(ucdUrl, httpClient);
+        compClient = new ComponentClient(ucdUrl, httpClient);
+        this.ucdUrl = ucdUrl;
+        this.httpClient = httpClient;
         this.listener = listener;
         this.envVars = envVars;
+        // lookups are only shared between clients of the same server and user
+        clientKey = ucdUrl + "|" + UCDeploySite.getClientIdentity(httpClient);
     }
 
     public static class CreateComponentBlock implements Serializable {
@@ -82,6 +116,20 @@ public class ComponentHelper {
 
     public void createComponent(String name, CreateComponentBlock componentBlock, DeliveryBlock deliveryBlock)
             throws AbortException {
+        createComponent(name, componentBlock, deliveryBlock, null);
+    }
+
+    /**
+     * Create a component unless it exists, then configure it and add it to its application
+     *
+     * @param name The name of the component, which may hold build variables
+     * @param componentBlock The template and application of the component
+     * @param deliveryBlock The delivery settings of the component
+     * @param existingIds The UUIDs of every component on the server by name, or null to look the component up
+     * @throws AbortException
+     */
+    private void createComponent(String name, CreateComponentBlock componentBlock, DeliveryBlock deliveryBlock,
+            Map<String, UUID> existingIds) throws AbortException {
         // definitions needed for ComponentClient createComponent method
         String componentName;
         String description;
@@ -130,16 +178,28 @@ public class ComponentHelper {
 
         // check if comopnent already exists
         UUID componentUUID = null;
-        try {
-            listener.getLogger().println("Checking the UCD server for an existing component '" + componentName + "'");
-            componentUUID = compClient.getComponentUUID(componentName);
-            listener.getLogger()
-                    .println("The component already exists on the UCD server with UUID '" + componentUUID + "'");
-        } catch (IOException ex) {
-            listener.getLogger().println("The component does not exist on the UCD server");
-        } catch (JSONException ex) {
-            throw new AbortException(
-                    "An error occurred while checking the UCD server for the component : " + ex.getMessage());
+        if (existingIds != null) {
+            componentUUID = existingIds.get(componentName);
+            if (componentUUID == null) {
+                listener.getLogger().println("The component '" + componentName + "' does not exist on the UCD server");
+            }
+            else {
+                listener.getLogger().println("The component '" + componentName
+                        + "' already exists on the UCD server with UUID '" + componentUUID + "'");
+            }
+        }
+        else {
+            try {
+                listener.getLogger().println("Checking the UCD server for an existing component '" + componentName + "'");
+                componentUUID = getComponentUUID(componentName);
+                listener.getLogger()
+                        .println("The component already exists on the UCD server with UUID '" + componentUUID + "'");
+            } catch (IOException ex) {
+                listener.getLogger().println("The component does not exist on the UCD server");
+            } catch (Exception ex) {
+                throw new AbortException(
+                        "An error occurred while checking the UCD server for the component : " + ex.getMessage());
+            }
         }
 
         // create new component
@@ -159,18 +219,7 @@ public class ComponentHelper {
 
         // create component properties
         if (deliveryBlock.getDeliveryType() == DeliveryBlock.DeliveryType.Pull) {
-            for (Map.Entry<String, String> entry : properties.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-
-                try {
-                    listener.getLogger().println("Setting component property '" + key + "' to '" + value + "'");
-                    compClient.setComponentProperty(componentName, key, value, false);
-                    listener.getLogger().println("Successfully set property");
-                } catch (IOException ex) {
-                    throw new AbortException("Failed to set component property: " + ex.getMessage());
-                }
-            }
+            setComponentProperties(componentName, componentUUID, properties);
         }
 
         // add to application
@@ -181,14 +230,7 @@ public class ComponentHelper {
             try {
                 listener.getLogger().println("Checking the UCD server for existing component '" + componentName
                         + "' in " + "application '" + application + "'");
-                JSONArray serverComponents = appClient.getApplicationComponents(application);
-                for (int i = 0; i < serverComponents.length(); i++) {
-                    JSONObject serverComponent = serverComponents.getJSONObject(i);
-                    String serverComponentName = serverComponent.getString("name");
-                    if (componentName.equals(serverComponentName)) {
-                        componentExists = true;
-                    }
-                }
+                componentExists = isComponentInApplication(application, componentName);
             } catch (IOException ex) {
                 throw new AbortException(
                         "An error occurred while retrieving application components : " + ex.getMessage());
@@ -196,6 +238,9 @@ public class ComponentHelper {
                 throw new AbortException(
                         "An error occurred while processing the JSON object for the application components: "
                                 + ex.getMessage());
+            } catch (Exception ex) {
+                throw new AbortException(
+                        "An error occurred while retrieving application components : " + ex.getMessage());
             }
 
             if (componentExists) {
@@ -208,6 +253,7 @@ public class ComponentHelper {
                     listener.getLogger()
                             .println("Adding component '" + componentName + "' to application '" + application + "'");
                     appClient.addComponentToApplication(application, componentName);
+                    applicationComponentNames.invalidate(clientKey + "|" + application);
                     listener.getLogger().println("Successfully added component");
                 } catch (IOException ex) {
                     throw new AbortException(
@@ -217,6 +263,301 @@ public class ComponentHelper {
         }
     }
 
+    /**
+     * Set the source properties of a component. The current property sheet is read once and
+     * unchanged values are skipped, the remaining properties are written concurrently.
+     *
+     * @param componentName The name of the component
+     * @param componentUUID The UUID of the component
+     * @param properties The properties to set
+     * @throws AbortException
+     */
+    private void setComponentProperties(final String componentName, UUID componentUUID, Map<String, String> properties)
+    throws AbortException {
+        Map<String, String> existing = getComponentProperties(componentUUID);
+        List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            final String key = entry.getKey();
+            final String value = entry.getValue();
+
+            if (value.equals(existing.get(key))) {
+                continue;
+            }
+            writes.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    compClient.setComponentProperty(componentName, key, value, false);
+                    return null;
+                }
+            });
+        }
+
+        listener.getLogger().println("Setting " + writes.size() + " component properties, "
+                + (properties.size() - writes.size()) + " are unchanged");
+
+        try {
+            RequestPool.invokeAll(writes, Math.min(PROPERTY_WRITE_CONCURRENCY,
+                    UCDeploySite.getMaxConcurrentRequests(httpClient)));
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while setting component properties");
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to set component property: " + ex.getMessage());
+        }
+
+        if (!writes.isEmpty()) {
+            listener.getLogger().println("Successfully set component properties");
+        }
+    }
+
+    /**
+     * Read the current values of the non-secure properties of a component
+     *
+     * @param componentUUID The UUID of the component
+     * @return The property values by name, empty when they cannot be read
+     */
+    private Map<String, String> getComponentProperties(UUID componentUUID) {
+        Map<String, String> values = new HashMap<String, String>();
+
+        try {
+            // secure values are masked and can't be compared, so they are left out
+            URI uri = new URI(ucdUrl.toString() + "/property/propSheet/components%26" + componentUUID + "%26propSheet");
+            values.putAll(UCDeploySite.getPropertySheet(httpClient, uri));
+        }
+        catch (Exception ex) {
+            listener.getLogger().println("[Warning] Unable to read the current component properties, setting all: "
+                    + ex.getMessage());
+        }
+
+        return values;
+    }
+
+    /**
+     * Create, configure and attach every component of a manifest. The existing components
+     * are read with a single list call, then the components are handled concurrently.
+     *
+     * @param manifest The JSON array describing the components
+     * @param maxParallel The maximum number of components handled at once
+     * @throws AbortException When the manifest is invalid or any component failed
+     */
+    public void createComponents(String manifest, int maxParallel) throws AbortException {
+        final List<ManifestEntry> entries = readManifest(manifest);
+        listener.getLogger().println("Onboarding " + entries.size() + " components from the manifest");
+
+        // one list call replaces an existence check per component, new components are not looked up at all
+        Map<String, UUID> existing = null;
+        try {
+            URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("component").build();
+            existing = UCDeploySite.executeGet(httpClient, uri, new JsonStreamReader.Parser<Map<String, UUID>>() {
+                @Override
+                public Map<String, UUID> parse(JsonStreamReader reader) throws IOException {
+                    Map<String, UUID> ids = new HashMap<String, UUID>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Map<String, String> component = reader.readFields("name", "id");
+                        ids.put(component.get("name"), UUID.fromString(component.get("id")));
+                    }
+                    reader.endArray();
+                    return ids;
+                }
+            });
+            listener.getLogger().println("Found " + existing.size() + " existing components on the UCD server");
+        }
+        catch (Exception ex) {
+            // not fatal, each component is then checked on its own
+            listener.getLogger().println("[Warning] Unable to list existing components: " + ex.getMessage());
+        }
+
+        final Map<String, UUID> existingIds = existing;
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (final ManifestEntry entry : entries) {
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    try {
+                        createComponent(entry.name, entry.createBlock, entry.delivery, existingIds);
+                        if (!entry.tag.isEmpty()) {
+                            addTag(envVars.expand(entry.name), envVars.expand(entry.tag));
+                        }
+                        return null;
+                    }
+                    catch (AbortException ex) {
+                        listener.getLogger().println("Failed to onboard component '" + entry.name + "': "
+                                + ex.getMessage());
+                        return entry.name;
+                    }
+                }
+            });
+        }
+
+        List<String> results;
+        try {
+            results = RequestPool.invokeAll(tasks, Math.max(1, Math.min(maxParallel,
+                    UCDeploySite.getMaxConcurrentRequests(httpClient))));
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while onboarding components");
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to onboard components: " + ex.getMessage());
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (String result : results) {
+            if (result != null) {
+                failed.add(result);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new AbortException("Failed to onboard " + failed.size() + " of " + entries.size()
+                    + " components: " + failed);
+        }
+
+        listener.getLogger().println("Successfully onboarded " + entries.size() + " components");
+    }
+
+    /**
+     * Read a manifest of the form
+     * [{"name": "...", "template": "...", "application": "...", "tag": "...", "delivery": "Push" or "Pull",
+     *   "sourceType": "...", "sourceProperties": {"...": "..."}, "incremental": false}]
+     *
+     * @param manifest The JSON array describing the components
+     * @return The components of the manifest
+     * @throws AbortException
+     */
+    private static List<ManifestEntry> readManifest(String manifest) throws AbortException {
+        List<ManifestEntry> entries = new ArrayList<ManifestEntry>();
+        Set<String> names = new HashSet<String>();
+        JSONArray array;
+
+        try {
+            array = new JSONArray(manifest);
+        }
+        catch (JSONException ex) {
+            throw new AbortException("The component manifest is not a valid JSON array: " + ex.getMessage());
+        }
+
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject component = array.optJSONObject(i);
+            if (component == null || component.optString("name", "").isEmpty()) {
+                throw new AbortException("Component " + (i + 1) + " of the manifest has no name.");
+            }
+
+            String name = component.optString("name");
+            if (!names.add(name)) {
+                throw new AbortException("Component '" + name + "' appears more than once in the manifest.");
+            }
+
+            String deliveryType = component.optString("delivery", "Push");
+            boolean incremental = component.optBoolean("incremental", false);
+            DeliveryBlock delivery;
+
+            if (deliveryType.equalsIgnoreCase("Push")) {
+                delivery = new Push(null, null, null, null, null, null, null, null, incremental);
+            }
+            else if (deliveryType.equalsIgnoreCase("Pull")) {
+                StringBuilder sourceProperties = new StringBuilder();
+                JSONObject properties = component.optJSONObject("sourceProperties");
+                if (properties != null) {
+                    for (Iterator<?> it = properties.keys(); it.hasNext();) {
+                        String key = (String) it.next();
+                        sourceProperties.append(key).append('=').append(properties.optString(key)).append('\n');
+                    }
+                }
+                delivery = new Pull(null, component.optString("sourceType", ""), sourceProperties.toString().trim(),
+                        incremental);
+            }
+            else {
+                throw new AbortException("Invalid Delivery Type '" + deliveryType + "' for component '" + name + "'");
+            }
+
+            entries.add(new ManifestEntry(name, component.optString("tag", ""), new CreateComponentBlock(
+                    component.optString("template", ""), component.optString("application", "")), delivery));
+        }
+
+        return entries;
+    }
+
+    /**
+     * A single component of a bulk onboarding manifest
+     */
+    private static class ManifestEntry {
+        private final String name;
+        private final String tag;
+        private final CreateComponentBlock createBlock;
+        private final DeliveryBlock delivery;
+
+        private ManifestEntry(String name, String tag, CreateComponentBlock createBlock, DeliveryBlock delivery) {
+            this.name = name;
+            this.tag = tag;
+            this.createBlock = createBlock;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * Look up the UUID of a component, sharing the call with identical lookups already
+     * running. The answer is never cached, since a stale id would skip creating a
+     * component which was deleted or renamed.
+     *
+     * @param componentName The name of the component
+     * @return The UUID of the component
+     * @throws Exception IOException when the component does not exist
+     */
+    private UUID getComponentUUID(final String componentName) throws Exception {
+        return componentLookups.execute(clientKey + "|" + componentName, new Callable<UUID>() {
+            @Override
+            public UUID call() throws Exception {
+                return compClient.getComponentUUID(componentName);
+            }
+        });
+    }
+
+    /**
+     * Check whether a component belongs to an application. A cached component list is
+     * only trusted to say yes, a component missing from it is checked with the server.
+     *
+     * @param application The name of the application
+     * @param componentName The name of the component
+     * @return A boolean value stating whether the component is in the application
+     * @throws Exception
+     */
+    private boolean isComponentInApplication(final String application, String componentName) throws Exception {
+        String key = clientKey + "|" + application;
+        Set<String> names = applicationComponentNames.get(key);
+
+        if (names == null || !names.contains(componentName)) {
+            names = applicationComponentLookups.execute(key, new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws Exception {
+                    URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("application")
+                            .path("componentsInApplication").queryParam("application", application).build();
+                    return UCDeploySite.executeGet(httpClient, uri, new JsonStreamReader.Parser<Set<String>>() {
+                        @Override
+                        public Set<String> parse(JsonStreamReader reader) throws IOException {
+                            Set<String> serverNames = new HashSet<String>();
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                serverNames.add(reader.readFields("name").get("name"));
+                            }
+                            reader.endArray();
+                            return Collections.unmodifiableSet(serverNames);
+                        }
+                    });
+                }
+            });
+            applicationComponentNames.put(key, names);
+        }
+
+        return names.contains(componentName);
+    }
+
+    public static ExpiringCache<String, Set<String>> getApplicationComponentCache() {
+        return applicationComponentNames;
+    }
+
     public void addTag(String name, String tag) throws AbortException {
         try {
             compClient.addTagToComponent(name, tag);
@@ -0,0 +1,127 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.Extension;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.urbancode.jenkins.plugins.ucdeploy.UCDeployPublisher.UserBlock;
+
+/**
+ * Pipeline step which creates many components in IBM UrbanCode Deploy from a
+ * manifest, handling several components at once
+ *
+ */
+public class CreateComponentsStep extends AbstractStepImpl {
+
+    /* Components handled at once when no limit is given */
+    public static final int DEFAULT_MAX_PARALLEL = 8;
+
+    private String siteName;
+    private UserBlock altUser;
+    private String manifest;
+    private Integer maxParallel;
+
+    /**
+     * Constructor used for data-binding fields from the corresponding
+     * config.jelly
+     *
+     * @param siteName
+     *            The profile name of the UrbanDeploy site
+     * @param altUser
+     *            The object holding the alternative user credentials
+     * @param manifest
+     *            The JSON array describing the components
+     */
+    @DataBoundConstructor
+    public CreateComponentsStep(String siteName, UserBlock altUser, String manifest) {
+        this.siteName = siteName;
+        this.altUser = altUser;
+        this.manifest = manifest;
+    }
+
+    public String getSiteName() {
+        return siteName;
+    }
+
+    public UserBlock getAltUser() {
+        return altUser;
+    }
+
+    public Boolean altUserChecked() {
+        if (altUser != null) {
+            return true;
+        }
+
+        return false;
+    }
+
+    public String getManifest() {
+        if (manifest != null) {
+            return manifest;
+        }
+        else {
+            return "";
+        }
+    }
+
+    public Integer getMaxParallel() {
+        if (maxParallel != null && maxParallel > 0) {
+            return maxParallel;
+        }
+        else {
+            return DEFAULT_MAX_PARALLEL;
+        }
+    }
+
+    @DataBoundSetter
+    public void setMaxParallel(Integer maxParallel) {
+        this.maxParallel = maxParallel;
+    }
+
+    @Extension(optional = true)
+    public static class CreateComponentsStepDescriptor extends AbstractStepDescriptorImpl {
+
+        public CreateComponentsStepDescriptor() {
+            super(CreateComponentsStepExecution.class);
+        }
+
+        /**
+         * Get all configured UCDeploySite objects
+         *
+         * @return The array of configured UCDeploySite objects
+         */
+        public UCDeploySite[] getSites() {
+            return GlobalConfig.getGlobalConfigDescriptor().getSites();
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @return {@inheritDoc}
+         */
+        @Override
+        public String getFunctionName() {
+            return "ucCreateComponents";
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @return {@inheritDoc}
+         */
+        @Override
+        public String getDisplayName() {
+            return "Create components in IBM UrbanCode Deploy";
+        }
+    }
+}
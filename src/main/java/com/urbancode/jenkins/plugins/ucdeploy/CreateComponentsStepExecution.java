@@ -0,0 +1,105 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import com.google.inject.Inject;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.Future;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+
+import com.urbancode.jenkins.plugins.ucdeploy.UCDeployPublisher.UserBlock;
+
+/**
+ * Asynchronous execution of the CreateComponentsStep. The components are created
+ * from the request pool so the build does not hold an executor meanwhile.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class CreateComponentsStepExecution extends AbstractStepExecutionImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    @Inject(optional = true)
+    private transient CreateComponentsStep step;
+
+    private transient volatile Future<?> task;
+
+    @Override
+    public boolean start() throws Exception {
+        final String siteName = step.getSiteName();
+        final UserBlock altUser = step.getAltUser();
+        final String manifest = step.getManifest();
+        final int maxParallel = step.getMaxParallel();
+
+        if (manifest.trim().isEmpty()) {
+            throw new AbortException("A component manifest is required to run the ucCreateComponents step.");
+        }
+
+        task = RequestPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    createComponentHelper(siteName, altUser).createComponents(manifest, maxParallel);
+                    getContext().onSuccess(null);
+                }
+                catch (Exception ex) {
+                    getContext().onFailure(ex);
+                }
+            }
+        });
+
+        return false;
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        Future<?> current = task;
+        if (current != null) {
+            current.cancel(true);
+        }
+        getContext().onFailure(cause);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        getContext().onFailure(new AbortException("Jenkins was restarted while components were being created. "
+                + "Run the step again to finish the remaining components."));
+    }
+
+    private ComponentHelper createComponentHelper(String siteName, UserBlock altUser) throws Exception {
+        UCDeploySite udSite = GlobalConfig.getGlobalConfigDescriptor().getSite(siteName);
+
+        if (udSite == null) {
+            throw new AbortException("No IBM UrbanCode Deploy server is configured with the name '" + siteName + "'");
+        }
+
+        DefaultHttpClient udClient;  // not serializable
+        if (altUser != null) {
+            udClient = udSite.getTempClient(altUser.getAltUsername(), altUser.getAltPassword());
+        }
+        else {
+            udClient = udSite.getClient();
+        }
+
+        TaskListener listener = getContext().get(TaskListener.class);
+        EnvVars envVars = getContext().get(EnvVars.class);
+        if (envVars == null) {
+            envVars = getContext().get(Run.class).getEnvironment(listener);
+        }
+
+        return new ComponentHelper(udSite.getUri(), udClient, listener, envVars);
+    }
+}
@@ -10,6 +10,7 @@ package com.urbancode.jenkins.plugins.ucdeploy;
 import hudson.AbortException;
 import hudson.ExtensionPoint;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 
@@ -17,11 +18,11 @@ import jenkins.model.Jenkins;
 
 import java.io.File;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * This class provides the structure and function around deployment control in
@@ -58,24 +59,19 @@ public class DeliveryHelper implements Serializable {
          * @throws AbortException
          */
         public static Map<String, String> mapProperties(String properties) throws AbortException {
-            Map<String, String> mappedProperties = new HashMap<String, String>();
-
-            if (properties != null && !properties.isEmpty()) {
-                for (String line : properties.split("\n")) {
-                    String[] propDef = line.split("=", 2);
-
-                    if (propDef.length >= 2) {
-                        String propName = propDef[0].trim();
-                        String propVal = propDef[1].trim();
-                        mappedProperties.put(propName, propVal);
-                    }
-                    else {
-                        throw new AbortException("Missing property delimiter '=' in property definition '" + line + "'");
-                    }
-                }
-            }
+            return mapProperties(properties, null);
+        }
 
-            return mappedProperties;
+        /**
+         * Load properties into a properties map, reading referenced properties files from the workspace
+         *
+         * @param properties The unparsed properties to load, or a reference to a properties file
+         * @param workspace The workspace to read properties files from, or null
+         * @return The loaded properties map
+         * @throws AbortException
+         */
+        public static Map<String, String> mapProperties(String properties, FilePath workspace) throws AbortException {
+            return ManifestReader.open(properties, workspace).readProperties();
         }
     }
 
@@ -210,10 +206,15 @@ public class DeliveryHelper implements Serializable {
     }
 
     public static class Pull extends DeliveryBlock {
+        /* Seconds to wait for an import when no timeout is given */
+        public static final int DEFAULT_IMPORT_TIMEOUT = 600;
+
         private String pullProperties;
         private String pullSourceType;
         private String pullSourceProperties;
         private Boolean pullIncremental;
+        private Boolean waitForImport;
+        private Integer importTimeout;
 
         @DataBoundConstructor
         public Pull(
@@ -265,6 +266,34 @@ public class DeliveryHelper implements Serializable {
             }
         }
 
+        public Boolean getWaitForImport() {
+            if (waitForImport != null) {
+                return waitForImport;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @DataBoundSetter
+        public void setWaitForImport(Boolean waitForImport) {
+            this.waitForImport = waitForImport;
+        }
+
+        public Integer getImportTimeout() {
+            if (importTimeout != null && importTimeout > 0) {
+                return importTimeout;
+            }
+            else {
+                return DEFAULT_IMPORT_TIMEOUT;
+            }
+        }
+
+        @DataBoundSetter
+        public void setImportTimeout(Integer importTimeout) {
+            this.importTimeout = importTimeout;
+        }
+
         @Extension
         public static final DeliveryDescriptor D = new DeliveryDescriptor(Pull.class);
     }
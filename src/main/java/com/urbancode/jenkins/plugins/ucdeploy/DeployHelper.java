@@ -17,6 +17,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import hudson.AbortException;
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
@@ -25,27 +26,39 @@ import hudson.util.DescribableList;
 import jenkins.model.Jenkins;
 import javax.ws.rs.core.UriBuilder;
 import java.io.IOException;
+import java.io.Serializable;
 import java.lang.InterruptedException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import com.urbancode.jenkins.plugins.ucdeploy.ProcessHelper;
 import com.urbancode.jenkins.plugins.ucdeploy.ProcessHelper.CreateProcessBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.PhaseTimings.Phase;
 import com.urbancode.ud.client.ApplicationClient;
 import javax.net.ssl.HttpsURLConnection;
 
@@ -60,21 +73,91 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class DeployHelper {
     public static final Logger log = LoggerFactory.getLogger(DeployHelper.class);
+
+    /* Milliseconds between application process status checks */
+    public static final long POLL_INTERVAL = 3000;
+
+    /* Milliseconds between safety net status checks when the UCD process reports back through a callback */
+    public static final long CALLBACK_POLL_INTERVAL = 30000;
+
+    /* Result reported when no application process was requested because nothing would change */
+    public static final String NO_CHANGES_RESULT = "NO CHANGES";
+
+    /* Maximum number of snapshot version changes sent to the server at once */
+    private static final int SNAPSHOT_UPDATE_CONCURRENCY = 8;
+
+    /* Milliseconds an application name to id mapping is trusted */
+    private static final long APPLICATION_ID_TTL = 30 * 60 * 1000;
+
+    /* Application ids keyed by server url and lower case application name, shared by all builds */
+    private static final ExpiringCache<String, String> applicationIds =
+            new ExpiringCache<String, String>(APPLICATION_ID_TTL);
+
+    /* Milliseconds an exported application property sheet version is trusted */
+    private static final long PROP_SHEET_VERSION_TTL = 60 * 60 * 1000;
+
+    /* Last exported property sheet version keyed by server url and application id */
+    private static final ExpiringCache<String, String> exportedPropSheetVersions =
+            new ExpiringCache<String, String>(PROP_SHEET_VERSION_TTL);
+
     private ApplicationClient appClient;
+    private DefaultHttpClient httpClient;
     private TaskListener listener;
     private EnvVars envVars;
     private URI ucdUrl;
     private boolean skipProps;
+    private FilePath workspace;
+    private PhaseTimings timings = new PhaseTimings();
 
     public DeployHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener, EnvVars envVars, boolean skipProps) {
         this.ucdUrl = ucdUrl;
     	appClient = new ApplicationClient(ucdUrl, httpClient);
+        this.httpClient = httpClient;
         this.listener = listener;
         this.envVars = envVars;
         this.skipProps = skipProps;
     }
 
-    public static class DeployBlock {
+    public static ExpiringCache<String, String> getApplicationIdCache() {
+        return applicationIds;
+    }
+
+    /**
+     * Set the workspace which manifest files are read from
+     *
+     * @param workspace The build workspace, or null when the build has none
+     */
+    public void setWorkspace(FilePath workspace) {
+        this.workspace = workspace;
+    }
+
+    /**
+     * Set the timings the phases of the deployment are recorded in
+     *
+     * @param timings The timings of the build step
+     */
+    public void setTimings(PhaseTimings timings) {
+        this.timings = timings;
+    }
+
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
+    public TaskListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Get the number of requests which may be sent to the UCD server at the same time
+     *
+     * @return The maximum number of concurrent requests
+     */
+    public int getMaxConcurrentRequests() {
+        return UCDeploySite.getMaxConcurrentRequests(httpClient);
+    }
+
+    public static class DeployBlock implements Serializable {
         private String deployApp;
         private String deployEnv;
         private String deployProc;
@@ -85,6 +168,11 @@ public class DeployHelper {
         private String deployReqProps;
         private String deployDesc;
         private Boolean deployOnlyChanged;
+        private Boolean useCallback;
+        private Boolean showProgress;
+        private Integer maxParallelEnvs;
+        private Boolean failFast;
+        private Boolean coalesce;
 
         @DataBoundConstructor
         public DeployBlock(
@@ -209,8 +297,78 @@ public class DeployHelper {
             }
         }
 
+        public Boolean getUseCallback() {
+            if (useCallback != null) {
+                return useCallback;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @DataBoundSetter
+        public void setUseCallback(Boolean useCallback) {
+            this.useCallback = useCallback;
+        }
+
+        public Boolean getShowProgress() {
+            if (showProgress != null) {
+                return showProgress;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @DataBoundSetter
+        public void setShowProgress(Boolean showProgress) {
+            this.showProgress = showProgress;
+        }
+
+        public Integer getMaxParallelEnvs() {
+            if (maxParallelEnvs != null) {
+                return maxParallelEnvs;
+            }
+            else {
+                return 0;
+            }
+        }
+
+        @DataBoundSetter
+        public void setMaxParallelEnvs(Integer maxParallelEnvs) {
+            this.maxParallelEnvs = maxParallelEnvs;
+        }
+
+        public Boolean getFailFast() {
+            if (failFast != null) {
+                return failFast;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @DataBoundSetter
+        public void setFailFast(Boolean failFast) {
+            this.failFast = failFast;
+        }
+
+        public Boolean getCoalesce() {
+            if (coalesce != null) {
+                return coalesce;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @DataBoundSetter
+        public void setCoalesce(Boolean coalesce) {
+            this.coalesce = coalesce;
+        }
+
         public String getMethod(String uri) throws Exception{
-            log.info("[UrbanCode Deploy] uri: " + uri);
+            log.debug("[UrbanCode Deploy] uri: {}", uri);
             String result = "";
             HttpGet method = new HttpGet(uri);
             try {
@@ -233,11 +391,17 @@ public class DeployHelper {
             finally {
                 method.releaseConnection();
             }
-            log.info("[UrbanCode Deploy] result: " + result);
             return result;
         }
 
-        public void createGlobalEnvironmentVariables(String key, String value) {
+        /**
+         * Set a global environment variable and save the Jenkins configuration
+         *
+         * @param key The name of the variable
+         * @param value The value of the variable
+         * @param ucdUrl The url of the UCD server the value was read from
+         */
+        public void createGlobalEnvironmentVariables(String key, String value, URI ucdUrl) {
 
             Jenkins instance = Jenkins.getInstance();
 
@@ -255,19 +419,24 @@ public class DeployHelper {
                 envVars = envVarsNodePropertyList.get(0).getEnvVars();
             }
             envVars.put(key, value);
+            FlightRecorderEvents.Event saveEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.ENV_VAR_SAVE);
             try {
                 instance.save();
             } catch(Exception e) {
                 System.out.println("Failed to create env variable"+e);
+            } finally {
+                saveEvent.commit(ucdUrl != null ? ucdUrl.toString() : null, key, null,
+                        value != null ? value.length() : 0);
             }
         }
     }
 
-    public static class CreateSnapshotBlock {
+    public static class CreateSnapshotBlock implements Serializable {
         private String snapshotName;
         private Boolean deployWithSnapshot;
         private Boolean updateSnapshotComp;
         private Boolean includeOnlyDeployVersions;
+        private Boolean mergeInventory;
 
         @DataBoundConstructor
         public CreateSnapshotBlock(String snapshotName, Boolean deployWithSnapshot, Boolean updateSnapshotComp, Boolean includeOnlyDeployVersions) {
@@ -307,6 +476,20 @@ public class DeployHelper {
                 return false;
             }
         }
+
+        public Boolean getMergeInventory() {
+            if (mergeInventory != null) {
+                return mergeInventory;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @DataBoundSetter
+        public void setMergeInventory(Boolean mergeInventory) {
+            this.mergeInventory = mergeInventory;
+        }
     }
 
     /**
@@ -317,351 +500,1210 @@ public class DeployHelper {
      * @throws IOException
      */
     public void runDeployment(DeployBlock deployBlock) throws IOException, JSONException {
-        String deployApp = envVars.expand(deployBlock.getDeployApp());
-        String deployEnv = envVars.expand(deployBlock.getDeployEnv());
-        String deployProc = envVars.expand(deployBlock.getDeployProc());
-        Boolean skipWait = deployBlock.getSkipWait();
-        String deployVersions = envVars.expand(deployBlock.getDeployVersions());
-        String deployReqProps = envVars.expand(deployBlock.getDeployReqProps());
-        String deployDesc = envVars.expand(deployBlock.getDeployDesc());
-        CreateSnapshotBlock createSnapshot = deployBlock.getCreateSnapshot();
-        Boolean doCreateSnapshot = deployBlock.createSnapshotChecked();
-        Map<String, String> requestProperties = readProperties(deployReqProps);
-
-        // create process
-        if (deployBlock.createProcessChecked()) {
-            ProcessHelper processHelper = new ProcessHelper(appClient, listener, envVars);
-            processHelper.createProcess(deployApp, deployProc, deployBlock.getCreateProcess());
-        }
-
-        // required fields
-        if (deployApp.isEmpty()) {
-            throw new AbortException("Deploy Application is a required field for deployment.");
-        }
-        if (deployEnv.isEmpty()) {
-            throw new AbortException("Deploy Environment is a required field for deployment.");
-        }
-        if (deployProc.isEmpty()) {
-            throw new AbortException("Deploy Process is a required field for deployment.");
-        }
-        
-        /*Commenting to support following :
-           1. Operational component process which needs no version.
-           2. Running application generic process 
-        */
-        /*
-        if (deployVersions.isEmpty()) {
-            throw new AbortException("Deploy Versions is a required field for deployment.");
+        if (!deployBlock.getCoalesce()) {
+            executeDeployment(deployBlock);
+            return;
         }
-        */
-
-        /* Deploy logic */
-        String snapshot = "";
-        Map<String, List<String>> componentVersions = new HashMap<String, List<String>>();
-        UUID appProcUUID;
-
-        /* Create snapshot preemptively to deploy */
-        if (doCreateSnapshot && createSnapshot.getDeployWithSnapshot()) {
-            snapshot = envVars.expand(createSnapshot.getSnapshotName());
-            doCreateSnapshot = false; // Set to false so reactive snapshot isn't created also
 
-            if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
-                listener.getLogger().println("[Warning] When deploying with a build environment snapshot,"
-                        + " you may not specify additional snapshots in the 'Snapshot/Component Versions' box."
-                        + " This field will be ignored for this deployment.");
+        DeploymentCoalescer.Ticket ticket = enqueueDeployment(deployBlock, null);
+        try {
+            String supersededBy;
+            timings.begin(Phase.QUEUE_WAIT);
+            try {
+                supersededBy = ticket.await();
             }
-            else {
-                componentVersions = readComponentVersions(deployVersions);  // Versions to add to new snapshot
+            catch (InterruptedException ex) {
+                throw new AbortException("Could not wait for earlier deployments to finish: " + ex.getMessage());
             }
-
-            listener.getLogger().println("Creating environment snapshot '" + snapshot
-                    + "' in UrbanCode Deploy.");
-
-            try {
-                if (createSnapshot.getIncludeOnlyDeployVersions()) {
-                    appClient.createSnapshot(snapshot, deployDesc, deployApp, componentVersions);
-                } else {
-                    appClient.createSnapshotOfEnvironment(deployEnv, deployApp, snapshot, deployDesc);
-                }
-            } catch (Exception ex) {
-                String exMessage = ex.getMessage();
-                String checkString = "Snapshot with name " + snapshot + " already exists for this application";
-                if (exMessage.contains(checkString) && createSnapshot.getUpdateSnapshotComp()) {
-                    listener.getLogger().println("Snapshot already exist, updating environment snapshot '" + snapshot
-                    + "' in UrbanCode Deploy.");
-                } else {
-                    throw new AbortException(ex.getMessage());
-                }
+            finally {
+                timings.end(Phase.QUEUE_WAIT);
             }
-
-            listener.getLogger().println("Acquiring all versions of the snapshot.");
-            JSONArray snapshotVersions = appClient.getSnapshotVersions(snapshot, deployApp);
-            Map<String, JSONArray> compVersionMap = new HashMap<String, JSONArray>();
-
-            /* Create a map of component name to a list of its versions in the snapshot */
-            for (int i = 0; i < snapshotVersions.length(); i++) {
-                JSONObject snapshotComponent = snapshotVersions.getJSONObject(i);
-                String name = snapshotComponent.getString("name");
-                JSONArray versions = snapshotComponent.getJSONArray("desiredVersions");
-
-                compVersionMap.put(name, versions);
+            if (supersededBy != null) {
+                throw new DeploymentCoalescer.SupersededException(supersededBy);
             }
 
-            for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
-                String component = entry.getKey();
-                JSONArray oldVersions = compVersionMap.get(component);
-
-                /* Remove past versions of the deployment component from the snapshot */
-                if (oldVersions != null && oldVersions.length() > 0) {
-                    for (int i = 0 ; i < oldVersions.length(); i++) {
-                        JSONObject oldVersion = oldVersions.getJSONObject(i);
-                        String oldVersionName = oldVersion.getString("name");
-                        String oldVersionId = oldVersion.getString("id");
-
-                        listener.getLogger().println("Removing past version '" + oldVersionName +
-                                "' of component '" + component + "' from snapshot.");
-                        appClient.removeVersionFromSnapshot(snapshot, deployApp, oldVersionId, component);
-                    }
-                }
+            executeDeployment(deployBlock);
+        }
+        finally {
+            DeploymentCoalescer.release(ticket);
+        }
+    }
 
-                /* Add each version for this component to the snapshot */
-                for (String version : entry.getValue()) {
-                    listener.getLogger().println("Adding component version '" + version +
-                            "' of component '" + component + "' to snapshot.");
-                    appClient.addVersionToSnapshot(snapshot, deployApp, version, component);
-                }
-            }
+    /**
+     * Join the controller-wide queue of the application environment, so only the newest
+     * waiting build deploys once the running deployment finishes
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param onChange Run when the deployment may start or has been superseded, may be null
+     * @return The ticket of the deployment, which must be released once it finishes
+     */
+    public DeploymentCoalescer.Ticket enqueueDeployment(DeployBlock deployBlock, Runnable onChange) {
+        String deployApp = envVars.expand(deployBlock.getDeployApp());
+        String deployEnv = envVars.expand(deployBlock.getDeployEnv());
+        String buildName = envVars.get("JOB_NAME", "") + " #" + envVars.get("BUILD_NUMBER", "");
 
-            listener.getLogger().println("Deploying SNAPSHOT '" + snapshot + "'");
-        }
-        /* Deploy with component versions or a pre-existing snapshot */
-        else {
-            if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
-                if (deployVersions.contains("\n")) {
-                    throw new AbortException("Only a single SNAPSHOT can be specified");
-                }
-                snapshot = deployVersions.replaceFirst("(?i)SNAPSHOT=", "");
-                listener.getLogger().println("Deploying SNAPSHOT '" + snapshot + "'");
-            }
-            else {
-                componentVersions = readComponentVersions(deployVersions);
-                listener.getLogger().println("Deploying component versions '" + componentVersions + "'");
-            }
+        DeploymentCoalescer.Ticket ticket = DeploymentCoalescer.enqueue(ucdUrl + "|" + deployApp + "|" + deployEnv,
+                buildName, onChange);
+
+        if (!ticket.isReady()) {
+            listener.getLogger().println("Another build is deploying application '" + deployApp + "' to environment '"
+                    + deployEnv + "'. Waiting for it to finish, this deployment is skipped if a newer build queues behind it.");
         }
 
-        appProcUUID = deploy(deployApp, deployProc, deployDesc, deployEnv, snapshot, componentVersions,
-                deployBlock.getDeployOnlyChanged(), requestProperties);
+        return ticket;
+    }
 
-        listener.getLogger().println("Starting deployment process '" + deployProc + "' of application '" + deployApp +
-                                     "' in environment '" + deployEnv + "'");
+    /**
+     * Deploy right away, without joining the queue of the application environment
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @throws JSONException
+     * @throws IOException
+     */
+    private void executeDeployment(DeployBlock deployBlock) throws IOException, JSONException {
+        List<String> environments = resolveEnvironments(deployBlock);
+        if (environments.size() > 1) {
+            runFanOutDeployment(deployBlock, environments);
+            return;
+        }
 
+        UUID appProcUUID = requestDeployment(deployBlock);
 
-        listener.getLogger().println("Deployment request id is: '" + appProcUUID.toString() + "'");
-        listener.getLogger().println("Deployment is running. Waiting for UCD Server feedback.");
-       
         long startTime = new Date().getTime();
-        boolean processFinished = false;
         String deploymentResult = "";
 
+        if (appProcUUID == null) {
+            deploymentResult = NO_CHANGES_RESULT;
+        }
         /* Wait for process to finish unless skipping the wait */
-        if (!skipWait) {
-            while (!processFinished) {
-                deploymentResult = checkDeploymentProcessResult(appProcUUID.toString());
+        else if (!deployBlock.getSkipWait()) {
+            final Semaphore wakeup = new Semaphore(0);
+            long pollInterval = POLL_INTERVAL;
+
+            if (deployBlock.getUseCallback()) {
+                pollInterval = CALLBACK_POLL_INTERVAL;
+                DeploymentCallbackAction.register(appProcUUID.toString(), new Runnable() {
+                    @Override
+                    public void run() {
+                        wakeup.release();
+                    }
+                });
+                listener.getLogger().println("Waiting for the UCD process to report back to "
+                        + DeploymentCallbackAction.getCallbackUrl(appProcUUID.toString()));
+            }
 
-                if (!deploymentResult.isEmpty()
-                        && !deploymentResult.equalsIgnoreCase("NONE")
-                        && !deploymentResult.equalsIgnoreCase("SCHEDULED FOR FUTURE")) {
-                    processFinished = true;
+            ProcessTraceReporter traceReporter = null;
+            if (deployBlock.getShowProgress()) {
+                traceReporter = new ProcessTraceReporter(appProcUUID.toString());
+            }
 
-                    if (deploymentResult.equalsIgnoreCase("FAULTED") || deploymentResult.equalsIgnoreCase("FAILED TO START") || deploymentResult.equalsIgnoreCase("CANCELED")) {
-                        throw new AbortException("Deployment process failed with result " + deploymentResult);
+            int polls = 0;
+            timings.begin(Phase.EXECUTION_WAIT);
+            try {
+                while (true) {
+                    deploymentResult = checkDeploymentProcessResult(appProcUUID.toString());
+                    polls++;
+                    reportProgress(traceReporter);
+
+                    if (isDeploymentFinished(deploymentResult)) {
+                        if (isDeploymentFailed(deploymentResult)) {
+                            throw new AbortException("Deployment process failed with result " + deploymentResult);
+                        }
+                        break;
                     }
-                }
 
-                // give application process more time to complete
-                try {
-                    Thread.sleep(3000);
-                }
-                catch (InterruptedException ex) {
-                    throw new AbortException("Could not wait to check deployment result: " + ex.getMessage());
+                    // give application process more time to complete, waking early on a callback
+                    try {
+                        wakeup.tryAcquire(pollInterval, TimeUnit.MILLISECONDS);
+                        wakeup.drainPermits();
+                    }
+                    catch (InterruptedException ex) {
+                        throw new AbortException("Could not wait to check deployment result: " + ex.getMessage());
+                    }
                 }
             }
+            finally {
+                timings.end(Phase.EXECUTION_WAIT, polls, 0);
+                DeploymentCallbackAction.unregister(appProcUUID.toString());
+            }
         }
         else {
             listener.getLogger().println("'Skip Wait' option selected. Returning immmediately "
                     + "without waiting for the UCD process to complete.");
         }
 
-        /* create snapshot of environment reactively, as a result of successful deployment */
-        if (doCreateSnapshot) {
-            String snapshotName = envVars.expand(createSnapshot.getSnapshotName());
-
-            listener.getLogger().println("Creating environment snapshot '" + snapshotName
-                    + "' in UrbanCode Deploy.");
-            appClient.createSnapshotOfEnvironment(deployEnv, deployApp, snapshotName, deployDesc);
-            listener.getLogger().println("Successfully created environment snapshot.");
-        }
+        completeDeployment(deployBlock, appProcUUID, deploymentResult, startTime);
+    }
 
-        long duration = (new Date().getTime() - startTime) / 1000;
+    /**
+     * Deploy to several environments, each with its own application process request,
+     * waiting on all requests in one shared loop
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param environments The names of the environments to deploy to
+     * @throws JSONException
+     * @throws IOException
+     */
+    private void runFanOutDeployment(DeployBlock deployBlock, List<String> environments) throws IOException, JSONException {
+        EnvironmentFanOut fanOut = new EnvironmentFanOut(environments, deployBlock.getMaxParallelEnvs(),
+                deployBlock.getFailFast(), deployBlock.getSkipWait());
 
-        listener.getLogger().println("Finished the deployment in " + duration + " seconds");
-        listener.getLogger().println("The deployment result is " + deploymentResult + ". See the UrbanCode Deploy deployment " +
-                                     "logs for details : " + ucdUrl + "/#applicationProcessRequest/" + appProcUUID.toString());
-        
-        listener.getLogger().println("Starting Application Property Fetching...");
-        try{
-            URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("application").build();
-            String data = deployBlock.getMethod(uri.toString());
-            String applicationId ="";
-            JSONArray array = new JSONArray(data);  
-                for(int i=0; i < array.length(); i++)   
-                {  
-                    if(array.getJSONObject(i).getString("name").equalsIgnoreCase(deployApp.toString())){
-                        applicationId = array.getJSONObject(i).getString("id");
-                        break;
-                    }
+        int polls = 1;
+        timings.begin(Phase.EXECUTION_WAIT);
+        try {
+            while (!fanOut.poll(this, deployBlock)) {
+                try {
+                    Thread.sleep(POLL_INTERVAL);
                 }
-            listener.getLogger().println("APPLICATION ID is " + applicationId);
-            if(applicationId!= ""){
-                URI uri1 = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("application").path(applicationId).build();
-                String data1 = deployBlock.getMethod(uri1.toString());
-                
-                JSONObject objectData = new JSONObject(data1);
-                JSONObject propSheet = objectData.getJSONObject("propSheet");
-                String versionCount = propSheet.getString("versionCount");
-                // find Application property 
-                String uri2 = ucdUrl.toString()+"/property/propSheet/applications%26"+applicationId+"%26propSheet."+versionCount;
-                String data2 = deployBlock.getMethod(uri2);
-                JSONObject PropertyObject = new JSONObject(data2);
-                JSONArray array1 = new JSONArray(PropertyObject.getString("properties"));
-                listener.getLogger().println("********** isSkipProps value is " + skipProps);
-                if (skipProps == false) {
-                    for(int i=0; i < array1.length(); i++)
-                    {  
-                        if(array1.getJSONObject(i).getString("secure") == "false"){
-                            listener.getLogger().println("Env : "+array1.getJSONObject(i).getString("name")+"="+array1.getJSONObject(i).getString("value"));
-                            deployBlock.createGlobalEnvironmentVariables(array1.getJSONObject(i).getString("name"),array1.getJSONObject(i).getString("value"));
-                        }
-                    }
+                catch (InterruptedException ex) {
+                    throw new AbortException("Could not wait to check deployment result: " + ex.getMessage());
                 }
+                polls++;
             }
-        }catch (Exception e) {
-                listener.getLogger().println(e);
         }
-        listener.getLogger().println("End Application Property Fetching.");
+        finally {
+            timings.end(Phase.EXECUTION_WAIT, polls, 0);
+        }
+
+        fanOut.finish(this, deployBlock);
     }
 
-    private UUID deploy(
-            String application,
-            String appProcess,
-            String description,
-            String environment,
-            String snapshot,
-            Map<String, List<String>> componentVersions,
-            Boolean deployOnlyChanged,
-            Map<String, String> requestProperties)
-    throws IOException, JSONException {
+    /**
+     * Expand the deploy environment field into the list of environments to deploy to. Environments
+     * are separated by commas or newlines and may use * and ? wildcards to match the environments
+     * of the application. A field or entry which is exactly the name of an environment of the
+     * application is used as it is, so names holding those characters still deploy to one environment.
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @return The names of the environments in the order they were given
+     * @throws JSONException
+     * @throws IOException
+     */
+    public List<String> resolveEnvironments(DeployBlock deployBlock) throws IOException, JSONException {
+        String deployApp = envVars.expand(deployBlock.getDeployApp());
+        String deployEnv = envVars.expand(deployBlock.getDeployEnv());
 
-        // Confirm all application request properties are fulfilled (not done by UCD)
-        JSONArray unfilledProps = appClient.checkUnfilledApplicationProcessRequestProperties(application,
-                appProcess, snapshot, requestProperties);
-        if (unfilledProps.length() > 0) {
-            List<String> props = new ArrayList<String>();
-            for (int i = 0; i < unfilledProps.length(); i++) {
-                String propName = unfilledProps.getJSONObject(i).getString("name");
-                props.add(propName);
-            }
-            throw new AbortException("Required UrbanCode Deploy Application Process request properties were "
-                    + "not supplied: " + props.toString());
+        if (!isEnvironmentList(deployEnv)) {
+            List<String> environments = new ArrayList<String>();
+            environments.add(deployEnv.trim());
+            return environments;
         }
 
-        // Run the application process
-        UUID appProcUUID = appClient.requestApplicationProcess(application,
-                                                          appProcess,
-                                                          description,
-                                                          environment,
-                                                          snapshot,
-                                                          deployOnlyChanged,
-                                                          componentVersions,
-                                                          requestProperties);
-        return appProcUUID;
+        return resolveEnvironments(deployBlock, getApplicationEnvironments(deployApp));
     }
 
     /**
-     * Convert string of newline separated component:version to HashMap required by AppClient
+     * Expand the deploy environment field against the environments of the application
      *
-     * @param comopnentVersionsRaw
-     * @return A HashMap containing the components with their version lists
-     * @throws AbortException
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param appEnvironments The names of every environment of the application
+     * @return The names of the environments in the order they were given
+     * @throws AbortException When a wildcard matches no environment
      */
-    private Map<String, List<String>> readComponentVersions(String componentVersionsRaw) throws AbortException {
+    private List<String> resolveEnvironments(DeployBlock deployBlock, Set<String> appEnvironments)
+    throws AbortException {
+        String deployApp = envVars.expand(deployBlock.getDeployApp());
+        String deployEnv = envVars.expand(deployBlock.getDeployEnv());
+        Set<String> environments = new LinkedHashSet<String>();
+
+        if (appEnvironments.contains(deployEnv.trim())) {
+            environments.add(deployEnv.trim());
+            return new ArrayList<String>(environments);
+        }
+
+        for (String entry : deployEnv.split("[,\n]")) {
+            String environment = entry.trim();
+
+            if (environment.isEmpty()) {
+                continue;
+            }
+            if (appEnvironments.contains(environment) || (!environment.contains("*") && !environment.contains("?"))) {
+                environments.add(environment);
+                continue;
+            }
+
+            String regex = "\\Q" + environment.replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q") + "\\E";
+            boolean matched = false;
+            for (String name : appEnvironments) {
+                if (name.matches(regex)) {
+                    environments.add(name);
+                    matched = true;
+                }
+            }
+            if (!matched) {
+                throw new AbortException("No environments of application '" + deployApp + "' match '" + environment + "'");
+            }
+        }
+
+        if (environments.size() > 1 && deployBlock.createSnapshotChecked()) {
+            throw new AbortException("An environment snapshot can only be created when deploying to a single environment.");
+        }
+
+        return new ArrayList<String>(environments);
+    }
+
+    /**
+     * @return Whether the deploy environment field may name several environments or use wildcards
+     */
+    private static boolean isEnvironmentList(String deployEnv) {
+        return deployEnv.contains(",") || deployEnv.contains("\n") || deployEnv.contains("*") || deployEnv.contains("?");
+    }
+
+    /**
+     * Get the names of the environments of an application
+     *
+     * @param deployApp The name of the application
+     * @return The environment names in the order returned by the server
+     * @throws IOException
+     * @throws JSONException
+     */
+    private Set<String> getApplicationEnvironments(String deployApp) throws IOException, JSONException {
+        URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("application")
+                .path("environmentsInApplication").queryParam("application", deployApp).build();
+        return UCDeploySite.executeGet(httpClient, uri, new JsonStreamReader.Parser<Set<String>>() {
+            @Override
+            public Set<String> parse(JsonStreamReader reader) throws IOException {
+                Set<String> names = new LinkedHashSet<String>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    names.add(reader.readFields("name").get("name"));
+                }
+                reader.endArray();
+                return names;
+            }
+        });
+    }
+
+    /**
+     * Build the read-only checks which confirm a deployment can be requested before anything is changed
+     * on the UCD server
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param pendingComponents The names of components the build creates before deploying, which are not checked
+     * @return The checks, each returning a problem or null
+     */
+    public List<Callable<String>> getPreflightChecks(final DeployBlock deployBlock, Set<String> pendingComponents) {
+        List<Callable<String>> checks = new ArrayList<Callable<String>>();
+        final String deployApp = envVars.expand(deployBlock.getDeployApp());
+        final String deployEnv = envVars.expand(deployBlock.getDeployEnv());
+        final String deployProc = envVars.expand(deployBlock.getDeployProc());
+        String deployVersions = envVars.expand(deployBlock.getDeployVersions());
+        final String deployReqProps = envVars.expand(deployBlock.getDeployReqProps());
+        boolean createsSnapshot = deployBlock.createSnapshotChecked()
+                && deployBlock.getCreateSnapshot().getDeployWithSnapshot();
+
+        // required fields
+        if (deployApp.isEmpty()) {
+            checks.add(PreflightCheck.problem("Deploy Application is a required field for deployment."));
+            return checks;
+        }
+        if (deployEnv.isEmpty()) {
+            checks.add(PreflightCheck.problem("Deploy Environment is a required field for deployment."));
+        }
+        if (deployProc.isEmpty()) {
+            checks.add(PreflightCheck.problem("Deploy Process is a required field for deployment."));
+        }
+
+        URI appUri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("application").path("info")
+                .queryParam("application", deployApp).build();
+        checks.add(PreflightCheck.exists(httpClient, appUri, "Application '" + deployApp + "' was not found"));
+
+        // environments, with lists and wildcards expanded against the application
+        if (!isEnvironmentList(deployEnv)) {
+            if (!deployEnv.trim().isEmpty()) {
+                URI envUri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("environment").path("info")
+                        .queryParam("application", deployApp).queryParam("environment", deployEnv.trim()).build();
+                checks.add(PreflightCheck.exists(httpClient, envUri, "Environment '" + deployEnv.trim()
+                        + "' was not found in application '" + deployApp + "'"));
+            }
+        }
+        else {
+            checks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Set<String> appEnvironments = getApplicationEnvironments(deployApp);
+                    List<String> missing = new ArrayList<String>();
+                    for (String environment : resolveEnvironments(deployBlock, appEnvironments)) {
+                        if (!appEnvironments.contains(environment)) {
+                            missing.add(environment);
+                        }
+                    }
+                    if (missing.isEmpty()) {
+                        return null;
+                    }
+                    return "Environments " + missing + " were not found in application '" + deployApp + "'";
+                }
+            });
+        }
+
+        // snapshot or component versions
+        String snapshot = "";
+        if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
+            if (!createsSnapshot) {
+                snapshot = deployVersions.replaceFirst("(?i)SNAPSHOT=", "").trim();
+                final String snapshotName = snapshot;
+                checks.add(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        try {
+                            // the snapshot exists when its version list is returned, none of which is needed
+                            UCDeploySite.executeGet(httpClient, getSnapshotVersionsUri(deployApp, snapshotName),
+                                    new JsonStreamReader.Parser<JsonStreamReader.Token>() {
+                                        @Override
+                                        public JsonStreamReader.Token parse(JsonStreamReader reader) throws IOException {
+                                            return reader.peek();
+                                        }
+                                    });
+                            return null;
+                        }
+                        catch (IOException ex) {
+                            return "Snapshot '" + snapshotName + "' was not found in application '" + deployApp
+                                    + "' (" + ex.getMessage() + ")";
+                        }
+                    }
+                });
+            }
+        }
+        else {
+            try {
+                final VersionResolver resolver = new VersionResolver(ucdUrl, httpClient);
+                for (Map.Entry<String, List<String>> entry : readComponentVersions(deployVersions).entrySet()) {
+                    if (!pendingComponents.contains(entry.getKey())) {
+                        final Map<String, List<String>> versions = Collections.singletonMap(entry.getKey(),
+                                entry.getValue());
+                        checks.add(new Callable<String>() {
+                            @Override
+                            public String call() throws Exception {
+                                List<String> problems = new ArrayList<String>();
+                                resolver.resolve(versions, problems);
+                                return problems.isEmpty() ? null : StringUtils.join(problems, "\n  - ");
+                            }
+                        });
+                    }
+                }
+            }
+            catch (AbortException ex) {
+                checks.add(PreflightCheck.problem(ex.getMessage()));
+            }
+        }
+
+        // the process and its request properties, unless the build creates them first
+        if (!deployBlock.createProcessChecked() && !deployProc.isEmpty()) {
+            final ProcessHelper processHelper = new ProcessHelper(ucdUrl, httpClient, listener, envVars);
+            checks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (processHelper.processExists(deployApp, deployProc)) {
+                        return null;
+                    }
+                    return "Application process '" + deployProc + "' was not found in application '" + deployApp + "'";
+                }
+            });
+
+            if (!createsSnapshot) {
+                final String requestSnapshot = snapshot;
+                checks.add(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        List<String> props = processHelper.getUnfilledRequestProperties(deployApp, deployProc,
+                                requestSnapshot, readProperties(deployReqProps));
+                        if (props.isEmpty()) {
+                            return null;
+                        }
+                        return "Required UrbanCode Deploy Application Process request properties were "
+                                + "not supplied: " + props.toString();
+                    }
+                });
+            }
+        }
+
+        return checks;
+    }
+
+    /**
+     * Submit the application process request for a deployment without waiting for it to finish
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @return The UUID of the application process request, or null if nothing would change
+     * @throws JSONException
+     * @throws IOException
+     */
+    public UUID requestDeployment(DeployBlock deployBlock) throws IOException, JSONException {
+        return requestDeployment(deployBlock, envVars.expand(deployBlock.getDeployEnv()));
+    }
+
+    /**
+     * Submit the application process request for a deployment to a single environment
+     * without waiting for it to finish
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param deployEnv The name of the environment to deploy to
+     * @return The UUID of the application process request, or null if nothing would change
+     * @throws JSONException
+     * @throws IOException
+     */
+    public UUID requestDeployment(DeployBlock deployBlock, String deployEnv) throws IOException, JSONException {
+        String deployApp = envVars.expand(deployBlock.getDeployApp());
+        String deployProc = envVars.expand(deployBlock.getDeployProc());
+        String deployVersions = envVars.expand(deployBlock.getDeployVersions());
+        String deployReqProps = envVars.expand(deployBlock.getDeployReqProps());
+        String deployDesc = envVars.expand(deployBlock.getDeployDesc());
+        CreateSnapshotBlock createSnapshot = deployBlock.getCreateSnapshot();
+        Boolean doCreateSnapshot = deployBlock.createSnapshotChecked();
+        Map<String, String> requestProperties = readProperties(deployReqProps);
+
+        // create process
+        if (deployBlock.createProcessChecked()) {
+            ProcessHelper processHelper = new ProcessHelper(ucdUrl, httpClient, listener, envVars);
+            processHelper.createProcess(deployApp, deployProc, deployBlock.getCreateProcess());
+        }
+
+        // required fields
+        if (deployApp.isEmpty()) {
+            throw new AbortException("Deploy Application is a required field for deployment.");
+        }
+        if (deployEnv.isEmpty()) {
+            throw new AbortException("Deploy Environment is a required field for deployment.");
+        }
+        if (deployProc.isEmpty()) {
+            throw new AbortException("Deploy Process is a required field for deployment.");
+        }
+        
+        /*Commenting to support following :
+           1. Operational component process which needs no version.
+           2. Running application generic process 
+        */
+        /*
+        if (deployVersions.isEmpty()) {
+            throw new AbortException("Deploy Versions is a required field for deployment.");
+        }
+        */
+
+        /* Deploy logic */
+        String snapshot = "";
         Map<String, List<String>> componentVersions = new HashMap<String, List<String>>();
+        UUID appProcUUID;
 
-        for (String cvLine : componentVersionsRaw.split("\n")) {
-            if(!cvLine.isEmpty() && cvLine != null) {
-                int delim = cvLine.indexOf(':');
+        /* Create snapshot preemptively to deploy */
+        if (doCreateSnapshot && createSnapshot.getDeployWithSnapshot()) {
+            snapshot = envVars.expand(createSnapshot.getSnapshotName());
+            doCreateSnapshot = false; // Set to false so reactive snapshot isn't created also
 
-                if (delim <= 0) {
-                    throw new AbortException("Component/version pairs must be of the form {Component}:{Version #}");
+            if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
+                listener.getLogger().println("[Warning] When deploying with a build environment snapshot,"
+                        + " you may not specify additional snapshots in the 'Snapshot/Component Versions' box."
+                        + " This field will be ignored for this deployment.");
+            }
+            else {
+                componentVersions = resolveComponentVersions(deployVersions);  // Versions to add to new snapshot
+            }
+
+            timings.begin(Phase.SNAPSHOT);
+            try {
+                listener.getLogger().println("Creating environment snapshot '" + snapshot
+                        + "' in UrbanCode Deploy.");
+
+                boolean snapshotComplete = false;  // snapshot already holds every requested version
+
+                try {
+                    if (createSnapshot.getIncludeOnlyDeployVersions()) {
+                        appClient.createSnapshot(snapshot, deployDesc, deployApp, componentVersions);
+                        snapshotComplete = true;
+                    } else if (createSnapshot.getMergeInventory()) {
+                        listener.getLogger().println("Merging requested versions with the inventory of environment '"
+                                + deployEnv + "'.");
+                        Map<String, List<String>> mergedVersions = getEnvironmentInventory(deployApp, deployEnv);
+                        mergedVersions.putAll(componentVersions);
+                        appClient.createSnapshot(snapshot, deployDesc, deployApp, mergedVersions);
+                        snapshotComplete = true;
+                    } else {
+                        appClient.createSnapshotOfEnvironment(deployEnv, deployApp, snapshot, deployDesc);
+                    }
+                } catch (Exception ex) {
+                    String exMessage = ex.getMessage();
+                    String checkString = "Snapshot with name " + snapshot + " already exists for this application";
+                    if (exMessage.contains(checkString) && createSnapshot.getUpdateSnapshotComp()) {
+                        listener.getLogger().println("Snapshot already exist, updating environment snapshot '" + snapshot
+                        + "' in UrbanCode Deploy.");
+                    } else {
+                        throw new AbortException(ex.getMessage());
+                    }
                 }
 
-                String component = cvLine.substring(0, delim).trim();
+                if (!snapshotComplete) {
+                    listener.getLogger().println("Acquiring all versions of the snapshot.");
+                    Map<String, Map<String, String>> compVersionMap = getSnapshotVersions(deployApp, snapshot);
 
-                List<String> versionList = componentVersions.get(component);
+                    updateSnapshotVersions(snapshot, deployApp, componentVersions, compVersionMap);
+                }
+            }
+            finally {
+                timings.end(Phase.SNAPSHOT);
+            }
+
+            listener.getLogger().println("Deploying SNAPSHOT '" + snapshot + "'");
+        }
+        /* Deploy with component versions or a pre-existing snapshot */
+        else {
+            if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
+                if (deployVersions.contains("\n")) {
+                    throw new AbortException("Only a single SNAPSHOT can be specified");
+                }
+                snapshot = deployVersions.replaceFirst("(?i)SNAPSHOT=", "");
+                listener.getLogger().println("Deploying SNAPSHOT '" + snapshot + "'");
+            }
+            else {
+                componentVersions = resolveComponentVersions(deployVersions);
 
-                // create new list of versions if no versions have been added
-                if (versionList == null) {
-                    versionList = new ArrayList<String>();
-                    componentVersions.put(component, versionList);
+                if (deployBlock.getDeployOnlyChanged() && isInventoryCurrent(deployApp, deployEnv, componentVersions)) {
+                    listener.getLogger().println("Component versions '" + componentVersions + "' are already deployed "
+                            + "to environment '" + deployEnv + "'. Skipping the deployment since nothing would change.");
+                    return null;
                 }
 
-                // update existing list of versions
-                String version = cvLine.substring(delim + 1).trim();
-                versionList.add(version);
+                listener.getLogger().println("Deploying component versions '" + componentVersions + "'");
             }
         }
 
-        return componentVersions;
+        timings.begin(Phase.REQUEST);
+        try {
+            appProcUUID = deploy(deployApp, deployProc, deployDesc, deployEnv, snapshot, componentVersions,
+                    deployBlock.getDeployOnlyChanged(), requestProperties);
+        }
+        finally {
+            timings.end(Phase.REQUEST);
+        }
+
+        listener.getLogger().println("Starting deployment process '" + deployProc + "' of application '" + deployApp +
+                                     "' in environment '" + deployEnv + "'");
+
+
+        listener.getLogger().println("Deployment request id is: '" + appProcUUID.toString() + "'");
+        listener.getLogger().println("Deployment is running. Waiting for UCD Server feedback.");
+
+        return appProcUUID;
     }
 
     /**
-     * Load properties into a properties map
+     * Finish a deployment once its application process request has completed, creating the reactive
+     * environment snapshot and importing application properties
      *
-     * @param properties The unparsed properties to load
-     * @return The loaded properties map
-     * @throws AbortException
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param appProcUUID The UUID of the completed application process request, or null if none was needed
+     * @param deploymentResult The final result of the application process request
+     * @param startTime The time in milliseconds when the deployment started running
+     * @throws JSONException
+     * @throws IOException
      */
-    private Map<String, String> readProperties(String properties) throws AbortException {
-        Map<String, String> propertiesToSet = new HashMap<String, String>();
-        if (properties != null && properties.length() > 0) {
-            for (String line : properties.split("\n")) {
-                String[] propDef = line.split("=");
-
-                if (propDef.length >= 2) {
-                    String propName = propDef[0].trim();
-                    String propVal = propDef[1].trim();
-                    propertiesToSet.put(propName, propVal);
+    public void completeDeployment(DeployBlock deployBlock, UUID appProcUUID, String deploymentResult, long startTime)
+    throws IOException, JSONException {
+        String deployApp = envVars.expand(deployBlock.getDeployApp());
+        String deployEnv = envVars.expand(deployBlock.getDeployEnv());
+        String deployDesc = envVars.expand(deployBlock.getDeployDesc());
+        CreateSnapshotBlock createSnapshot = deployBlock.getCreateSnapshot();
+        Boolean doCreateSnapshot = deployBlock.createSnapshotChecked() && !createSnapshot.getDeployWithSnapshot();
+
+        /* create snapshot of environment reactively, as a result of successful deployment */
+        if (doCreateSnapshot) {
+            String snapshotName = envVars.expand(createSnapshot.getSnapshotName());
+
+            listener.getLogger().println("Creating environment snapshot '" + snapshotName
+                    + "' in UrbanCode Deploy.");
+            timings.begin(Phase.SNAPSHOT);
+            try {
+                appClient.createSnapshotOfEnvironment(deployEnv, deployApp, snapshotName, deployDesc);
+            }
+            finally {
+                timings.end(Phase.SNAPSHOT);
+            }
+            listener.getLogger().println("Successfully created environment snapshot.");
+        }
+
+        long duration = (new Date().getTime() - startTime) / 1000;
+
+        listener.getLogger().println("Finished the deployment in " + duration + " seconds");
+        if (appProcUUID != null) {
+            listener.getLogger().println("The deployment result is " + deploymentResult + ". See the UrbanCode Deploy deployment " +
+                                         "logs for details : " + ucdUrl + "/#applicationProcessRequest/" + appProcUUID.toString());
+        }
+        else {
+            listener.getLogger().println("The deployment result is " + deploymentResult + ".");
+        }
+
+        importApplicationProperties(deployBlock);
+    }
+
+    /**
+     * Import the properties of the deployed application as global environment variables
+     *
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     */
+    public void importApplicationProperties(DeployBlock deployBlock) {
+        String deployApp = envVars.expand(deployBlock.getDeployApp());
+
+        listener.getLogger().println("Starting Application Property Fetching...");
+        listener.getLogger().println("********** isSkipProps value is " + skipProps);
+        if (skipProps == false) {
+            timings.begin(Phase.PROPERTY_FETCH);
+            try {
+                fetchApplicationProperties(deployBlock, deployApp);
+            }
+            catch (Exception e) {
+                listener.getLogger().println(e);
+            }
+            finally {
+                timings.end(Phase.PROPERTY_FETCH);
+            }
+        }
+        listener.getLogger().println("End Application Property Fetching.");
+    }
+
+    /**
+     * Read the latest desired inventory of an environment in a single request
+     *
+     * @param application The name of the application of the environment
+     * @param environment The name of the environment
+     * @return A map of each component name to its deployed version names
+     * @throws JSONException
+     * @throws IOException
+     */
+    private Map<String, List<String>> getEnvironmentInventory(String application, String environment)
+    throws IOException, JSONException {
+        return getEnvironmentInventory(getEnvironmentId(application, environment));
+    }
+
+    private Map<String, List<String>> getEnvironmentInventory(String environmentId)
+    throws IOException, JSONException {
+        URI inventoryUri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("environment")
+                .path(environmentId).path("latestDesiredInventory").build();
+
+        return UCDeploySite.executeGet(httpClient, inventoryUri, new JsonStreamReader.Parser<Map<String, List<String>>>() {
+            @Override
+            public Map<String, List<String>> parse(JsonStreamReader reader) throws IOException {
+                Map<String, List<String>> inventoryVersions = new HashMap<String, List<String>>();
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String component = null;
+                    String version = null;
+
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("component")) {
+                            component = reader.readFields("name").get("name");
+                        }
+                        else if (field.equals("version")) {
+                            version = reader.readFields("name").get("name");
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    List<String> versionList = inventoryVersions.get(component);
+                    if (versionList == null) {
+                        versionList = new ArrayList<String>();
+                        inventoryVersions.put(component, versionList);
+                    }
+                    versionList.add(version);
                 }
-                else {
-                    throw new AbortException("Missing property delimiter '=' in property definition '" + line + "'");
+                reader.endArray();
+
+                return inventoryVersions;
+            }
+        });
+    }
+
+    private String getEnvironmentId(String application, String environment) throws IOException, JSONException {
+        URI envUri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("environment").path("info")
+                .queryParam("application", application).queryParam("environment", environment).build();
+        return new JSONObject(UCDeploySite.executeGet(httpClient, envUri)).getString("id");
+    }
+
+    /**
+     * Determine whether the resources of an environment actually hold its desired inventory.
+     * The desired inventory also records versions whose deployment failed or was cut short,
+     * which leave the environment out of compliance.
+     *
+     * @param environmentId The id of the environment
+     * @return Whether every desired version is installed, false when compliancy is not reported
+     * @throws JSONException
+     * @throws IOException
+     */
+    private boolean isEnvironmentCompliant(String environmentId) throws IOException, JSONException {
+        URI compliancyUri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("environment")
+                .path(environmentId).path("compliancy").build();
+
+        Map<String, String> compliancy = UCDeploySite.executeGet(httpClient, compliancyUri,
+                new JsonStreamReader.Parser<Map<String, String>>() {
+            @Override
+            public Map<String, String> parse(JsonStreamReader reader) throws IOException {
+                return reader.readFields("correctCount", "desiredCount", "missingCount");
+            }
+        });
+
+        String correct = compliancy.get("correctCount");
+        String desired = compliancy.get("desiredCount");
+        String missing = compliancy.get("missingCount");
+        if (correct == null || desired == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(correct) == Long.parseLong(desired)
+                    && (missing == null || Long.parseLong(missing) == 0);
+        }
+        catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Determine whether an environment already has every requested component version installed,
+     * so deploying only changed versions would do nothing. The requested versions must be in the
+     * desired inventory, and the environment must be compliant with that inventory, so a failed
+     * or partial deployment of the same versions is requested again.
+     *
+     * @param application The name of the application of the environment
+     * @param environment The name of the environment
+     * @param componentVersions The requested versions of each component
+     * @return A boolean value stating whether every requested version is already deployed
+     */
+    private boolean isInventoryCurrent(String application, String environment, Map<String, List<String>> componentVersions) {
+        if (componentVersions.isEmpty()) {
+            return false;  // generic and operational processes always run
+        }
+
+        try {
+            String environmentId = getEnvironmentId(application, environment);
+            Map<String, List<String>> inventory = getEnvironmentInventory(environmentId);
+
+            for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
+                List<String> deployed = inventory.get(entry.getKey());
+                if (deployed == null || !deployed.containsAll(entry.getValue())) {
+                    return false;
                 }
             }
+
+            if (!isEnvironmentCompliant(environmentId)) {
+                listener.getLogger().println("Environment '" + environment + "' is not compliant with its inventory, "
+                        + "requesting the deployment again.");
+                return false;
+            }
+
+            return true;
+        }
+        catch (Exception ex) {
+            // the check is only an optimization, let the server decide
+            listener.getLogger().println("[Warning] Unable to confirm the installed versions of environment '"
+                    + environment + "': " + ex.getMessage());
+            return false;
         }
-        return propertiesToSet;
+    }
+
+    private URI getSnapshotVersionsUri(String application, String snapshot) {
+        return UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("snapshot").path("getSnapshotVersions")
+                .queryParam("application", application).queryParam("snapshot", snapshot).build();
+    }
+
+    /**
+     * Read the versions of each component in a snapshot, streaming the response and keeping only
+     * the version names and ids
+     *
+     * @param application The name of the application of the snapshot
+     * @param snapshot The name of the snapshot
+     * @return The ids of the versions of each component, by version name
+     * @throws JSONException
+     * @throws IOException
+     */
+    private Map<String, Map<String, String>> getSnapshotVersions(String application, String snapshot)
+    throws IOException, JSONException {
+        return UCDeploySite.executeGet(httpClient, getSnapshotVersionsUri(application, snapshot),
+                new JsonStreamReader.Parser<Map<String, Map<String, String>>>() {
+            @Override
+            public Map<String, Map<String, String>> parse(JsonStreamReader reader) throws IOException {
+                Map<String, Map<String, String>> compVersionMap = new HashMap<String, Map<String, String>>();
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String component = null;
+                    Map<String, String> versions = new LinkedHashMap<String, String>();
+
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("name")) {
+                            component = reader.nextString();
+                        }
+                        else if (field.equals("desiredVersions")) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                Map<String, String> version = reader.readFields("name", "id");
+                                versions.put(version.get("name"), version.get("id"));
+                            }
+                            reader.endArray();
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    compVersionMap.put(component, versions);
+                }
+                reader.endArray();
+
+                return compVersionMap;
+            }
+        });
+    }
+
+    /**
+     * Bring the component versions of a snapshot in line with the requested versions. Only versions
+     * which differ are removed or added, and those changes are sent to the server concurrently.
+     *
+     * @param snapshot The name of the snapshot to update
+     * @param application The name of the application of the snapshot
+     * @param componentVersions The requested versions of each component
+     * @param compVersionMap The ids of the current versions of each component in the snapshot, by version name
+     * @throws JSONException
+     * @throws IOException
+     */
+    private void updateSnapshotVersions(
+            final String snapshot,
+            final String application,
+            Map<String, List<String>> componentVersions,
+            Map<String, Map<String, String>> compVersionMap)
+    throws IOException, JSONException {
+        List<Callable<Void>> changes = new ArrayList<Callable<Void>>();
+
+        for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
+            final String component = entry.getKey();
+            Map<String, String> oldVersions = compVersionMap.get(component);
+            Set<String> existing = new HashSet<String>();
+
+            /* Remove past versions of the deployment component from the snapshot */
+            if (oldVersions != null) {
+                for (Map.Entry<String, String> oldVersion : oldVersions.entrySet()) {
+                    final String oldVersionName = oldVersion.getKey();
+                    final String oldVersionId = oldVersion.getValue();
+
+                    if (entry.getValue().contains(oldVersionName)) {
+                        existing.add(oldVersionName);
+                        continue;
+                    }
+                    changes.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            listener.getLogger().println("Removing past version '" + oldVersionName +
+                                    "' of component '" + component + "' from snapshot.");
+                            appClient.removeVersionFromSnapshot(snapshot, application, oldVersionId, component);
+                            return null;
+                        }
+                    });
+                }
+            }
+
+            /* Add each version for this component to the snapshot */
+            for (final String version : entry.getValue()) {
+                if (existing.contains(version)) {
+                    listener.getLogger().println("Component version '" + version +
+                            "' of component '" + component + "' is already in the snapshot.");
+                    continue;
+                }
+                changes.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        listener.getLogger().println("Adding component version '" + version +
+                                "' of component '" + component + "' to snapshot.");
+                        appClient.addVersionToSnapshot(snapshot, application, version, component);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        try {
+            RequestPool.invokeAll(changes, Math.min(SNAPSHOT_UPDATE_CONCURRENCY, getMaxConcurrentRequests()));
+        }
+        catch (IOException ex) {
+            throw ex;
+        }
+        catch (JSONException ex) {
+            throw ex;
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while updating snapshot '" + snapshot + "'");
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to update snapshot '" + snapshot + "': " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Export the application properties as global environment variables. The export is skipped
+     * when the application property sheet has not changed since it was last exported.
+     *
+     * @param deployBlock The DeployBlock used to set the environment variables
+     * @param deployApp The name of the deployed application
+     * @throws Exception
+     */
+    private void fetchApplicationProperties(final DeployBlock deployBlock, String deployApp) throws Exception {
+        String applicationId = getApplicationId(deployApp, true);
+        listener.getLogger().println("APPLICATION ID is " + applicationId);
+        if (applicationId.isEmpty()) {
+            return;
+        }
+
+        String sheetKey = ucdUrl + "|" + applicationId;
+        String exportedVersion = exportedPropSheetVersions.get(sheetKey);
+        Map<String, String> latestSheet = null;
+        String versionCount;
+
+        if (exportedVersion == null) {
+            // nothing to compare against, so read the latest sheet alongside the application
+            final URI sheetUri = new URI(ucdUrl.toString() + "/property/propSheet/applications%26" + applicationId + "%26propSheet");
+            Future<Map<String, String>> sheet = RequestPool.submit(new Callable<Map<String, String>>() {
+                @Override
+                public Map<String, String> call() throws Exception {
+                    return UCDeploySite.getPropertySheet(httpClient, sheetUri);
+                }
+            });
+            versionCount = getPropSheetVersion(applicationId);
+            try {
+                latestSheet = sheet.get();
+            }
+            catch (ExecutionException ex) {
+                latestSheet = null;  // read again below by version
+            }
+        }
+        else {
+            versionCount = getPropSheetVersion(applicationId);
+        }
+
+        // a cached id may belong to an application which was deleted and recreated
+        if (versionCount == null) {
+            applicationIds.invalidate(ucdUrl + "|" + deployApp.toLowerCase());
+            applicationId = getApplicationId(deployApp, false);
+            sheetKey = ucdUrl + "|" + applicationId;
+            latestSheet = null;
+            versionCount = applicationId.isEmpty() ? null : getPropSheetVersion(applicationId);
+            if (versionCount == null) {
+                throw new IOException("Unable to read the property sheet of application '" + deployApp + "'");
+            }
+        }
+
+        if (versionCount.equals(exportedVersion)) {
+            listener.getLogger().println("Application properties are unchanged since version " + versionCount
+                    + " was exported.");
+            return;
+        }
+
+        // find Application property
+        Map<String, String> properties = latestSheet;
+        if (properties == null) {
+            URI sheetUri = new URI(ucdUrl.toString()+"/property/propSheet/applications%26"+applicationId+"%26propSheet."+versionCount);
+            properties = UCDeploySite.getPropertySheet(httpClient, sheetUri);
+        }
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            listener.getLogger().println("Env : " + property.getKey() + "=" + property.getValue());
+            deployBlock.createGlobalEnvironmentVariables(property.getKey(), property.getValue(), ucdUrl);
+        }
+
+        exportedPropSheetVersions.put(sheetKey, versionCount);
+    }
+
+    /**
+     * Read the property sheet version of an application, leaving the rest of the application unread
+     *
+     * @param applicationId The id of the application
+     * @return The version count of the property sheet, or null when the application can't be read
+     * @throws JSONException
+     */
+    private String getPropSheetVersion(String applicationId) throws JSONException {
+        URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("application")
+                .path(applicationId).build();
+        try {
+            return UCDeploySite.executeGet(httpClient, uri, new JsonStreamReader.Parser<String>() {
+                @Override
+                public String parse(JsonStreamReader reader) throws IOException {
+                    if (!reader.findField("propSheet")) {
+                        return null;
+                    }
+                    return reader.readFields("versionCount").get("versionCount");
+                }
+            });
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the id of an application, using the controller-wide name to id index when possible
+     *
+     * @param application The name of the application
+     * @param useCache Whether a cached id may be returned
+     * @return The id of the application or an empty string if not found
+     * @throws Exception
+     */
+    private String getApplicationId(final String application, boolean useCache) throws Exception {
+        String key = ucdUrl + "|" + application.toLowerCase();
+        String applicationId = null;
+
+        if (useCache) {
+            applicationId = applicationIds.get(key);
+            if (applicationId != null) {
+                return applicationId;
+            }
+        }
+
+        // look up the single application by name
+        URI infoUri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("application").path("info")
+                .queryParam("application", application).build();
+        try {
+            applicationId = UCDeploySite.executeGet(httpClient, infoUri, new JsonStreamReader.Parser<String>() {
+                @Override
+                public String parse(JsonStreamReader reader) throws IOException {
+                    return reader.findField("id") ? reader.nextString() : null;
+                }
+            });
+        }
+        catch (IOException ex) {
+            applicationId = null;
+        }
+
+        // fall back to the full application list, matching the name case-insensitively
+        if (applicationId == null) {
+            URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy").path("application").build();
+            applicationId = UCDeploySite.executeGet(httpClient, uri, new JsonStreamReader.Parser<String>() {
+                @Override
+                public String parse(JsonStreamReader reader) throws IOException {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Map<String, String> app = reader.readFields("name", "id");
+                        String name = app.get("name");
+                        if (name == null || app.get("id") == null) {
+                            continue;
+                        }
+                        applicationIds.put(ucdUrl + "|" + name.toLowerCase(), app.get("id"));
+                        if (name.equalsIgnoreCase(application)) {
+                            return app.get("id");  // the rest of the list is never read
+                        }
+                    }
+                    reader.endArray();
+                    return null;
+                }
+            });
+        }
+
+        if (applicationId == null) {
+            return "";
+        }
+
+        applicationIds.put(key, applicationId);
+        return applicationId;
+    }
+
+    private UUID deploy(
+            String application,
+            String appProcess,
+            String description,
+            String environment,
+            String snapshot,
+            Map<String, List<String>> componentVersions,
+            Boolean deployOnlyChanged,
+            Map<String, String> requestProperties)
+    throws IOException, JSONException {
+
+        // Confirm all application request properties are fulfilled (not done by UCD)
+        ProcessHelper processHelper = new ProcessHelper(ucdUrl, httpClient, listener, envVars);
+        List<String> props = processHelper.getUnfilledRequestProperties(application, appProcess, snapshot,
+                requestProperties);
+        if (!props.isEmpty()) {
+            throw new AbortException("Required UrbanCode Deploy Application Process request properties were "
+                    + "not supplied: " + props.toString());
+        }
+
+        // Run the application process
+        UUID appProcUUID;
+        try {
+            appProcUUID = appClient.requestApplicationProcess(application,
+                                                         appProcess,
+                                                         description,
+                                                         environment,
+                                                         snapshot,
+                                                         deployOnlyChanged,
+                                                         componentVersions,
+                                                         requestProperties);
+        }
+        catch (IOException ex) {
+            // the process may have been deleted since it was last found
+            processHelper.forgetProcess(application, appProcess);
+            throw ex;
+        }
+        return appProcUUID;
+    }
+
+    /**
+     * Read the component versions of a deployment and resolve them to concrete versions on the
+     * UCD server, failing before the request when any version does not exist
+     *
+     * @param componentVersionsRaw The newline separated component:version pairs
+     * @return A HashMap containing the components with their concrete version lists
+     * @throws AbortException
+     */
+    private Map<String, List<String>> resolveComponentVersions(String componentVersionsRaw) throws AbortException {
+        Map<String, List<String>> componentVersions = readComponentVersions(componentVersionsRaw);
+
+        if (componentVersions.isEmpty()) {
+            return componentVersions;
+        }
+
+        long startTime = new Date().getTime();
+        Map<String, List<String>> resolved = new VersionResolver(ucdUrl, httpClient).resolve(componentVersions);
+        listener.getLogger().println("Resolved the versions of " + resolved.size() + " components in "
+                + (new Date().getTime() - startTime) + " ms");
+
+        return resolved;
+    }
+
+    /**
+     * Convert string of newline separated component:version, or a reference to a file holding them,
+     * to HashMap required by AppClient
+     *
+     * @param comopnentVersionsRaw
+     * @return A HashMap containing the components with their version lists
+     * @throws AbortException
+     */
+    private Map<String, List<String>> readComponentVersions(String componentVersionsRaw) throws AbortException {
+        return ManifestReader.open(componentVersionsRaw, workspace).readComponentVersions();
+    }
+
+    /**
+     * Load properties into a properties map
+     *
+     * @param properties The unparsed properties to load, or a reference to a properties file
+     * @return The loaded properties map
+     * @throws AbortException
+     */
+    private Map<String, String> readProperties(String properties) throws AbortException {
+        return ManifestReader.open(properties, workspace).readProperties();
     }
 
     /**
      * Check the result of an application process
      *
-     * @param appClient
      * @param procId
-     * @return A boolean value stating whether the process is finished
+     * @return The current result of the application process request
      * @throws AbortException
      */
-    private String checkDeploymentProcessResult(String procId)
+    public String checkDeploymentProcessResult(String procId)
     throws AbortException {
         String deploymentResult;
 
+        FlightRecorderEvents.Event pollEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.STATUS_POLL);
         try {
             deploymentResult = appClient.getApplicationProcessStatus(procId);
         }
@@ -669,7 +1711,45 @@ public class DeployHelper {
             throw new AbortException("Failed to acquire status of application process with id '" + procId + "' : "
                                      + ex.getMessage());
         }
+        finally {
+            pollEvent.commit(ucdUrl.toString(), "getApplicationProcessStatus", null, 0);
+        }
 
         return deploymentResult;
     }
+
+    /**
+     * Print the steps of the application process request which changed since the last check
+     *
+     * @param traceReporter The reporter tracking the request, or null when progress is not shown
+     */
+    public void reportProgress(ProcessTraceReporter traceReporter) {
+        if (traceReporter != null) {
+            traceReporter.report(ucdUrl, httpClient, listener);
+        }
+    }
+
+    /**
+     * Determine whether an application process result is a terminal one
+     *
+     * @param deploymentResult The result returned by the UCD server
+     * @return A boolean value stating whether the process is finished
+     */
+    public static boolean isDeploymentFinished(String deploymentResult) {
+        return !deploymentResult.isEmpty()
+                && !deploymentResult.equalsIgnoreCase("NONE")
+                && !deploymentResult.equalsIgnoreCase("SCHEDULED FOR FUTURE");
+    }
+
+    /**
+     * Determine whether a terminal application process result means the deployment failed
+     *
+     * @param deploymentResult The result returned by the UCD server
+     * @return A boolean value stating whether the process failed
+     */
+    public static boolean isDeploymentFailed(String deploymentResult) {
+        return deploymentResult.equalsIgnoreCase("FAULTED")
+                || deploymentResult.equalsIgnoreCase("FAILED TO START")
+                || deploymentResult.equalsIgnoreCase("CANCELED");
+    }
 }
@@ -0,0 +1,104 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.Extension;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.DeployBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.UCDeployPublisher.UserBlock;
+
+/**
+ * Pipeline step which runs a deployment in IBM UrbanCode Deploy without
+ * holding an executor while the application process is running
+ *
+ */
+public class DeployStep extends AbstractStepImpl {
+
+    private String siteName;
+    private UserBlock altUser;
+    private DeployBlock deploy;
+
+    /**
+     * Constructor used for data-binding fields from the corresponding
+     * config.jelly
+     *
+     * @param siteName
+     *            The profile name of the UrbanDeploy site
+     * @param altUser
+     *            The object holding the alternative user credentials
+     * @param deploy
+     *            The object holding the Deploy Block structure
+     */
+    @DataBoundConstructor
+    public DeployStep(String siteName, UserBlock altUser, DeployBlock deploy) {
+        this.siteName = siteName;
+        this.altUser = altUser;
+        this.deploy = deploy;
+    }
+
+    public String getSiteName() {
+        return siteName;
+    }
+
+    public UserBlock getAltUser() {
+        return altUser;
+    }
+
+    public Boolean altUserChecked() {
+        if (altUser != null) {
+            return true;
+        }
+
+        return false;
+    }
+
+    public DeployBlock getDeploy() {
+        return deploy;
+    }
+
+    @Extension(optional = true)
+    public static class DeployStepDescriptor extends AbstractStepDescriptorImpl {
+
+        public DeployStepDescriptor() {
+            super(DeployStepExecution.class);
+        }
+
+        /**
+         * Get all configured UCDeploySite objects
+         *
+         * @return The array of configured UCDeploySite objects
+         */
+        public UCDeploySite[] getSites() {
+            return GlobalConfig.getGlobalConfigDescriptor().getSites();
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @return {@inheritDoc}
+         */
+        @Override
+        public String getFunctionName() {
+            return "ucDeploy";
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @return {@inheritDoc}
+         */
+        @Override
+        public String getDisplayName() {
+            return "Deploy with IBM UrbanCode Deploy";
+        }
+    }
+}
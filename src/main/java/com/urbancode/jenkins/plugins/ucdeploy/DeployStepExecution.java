@@ -0,0 +1,546 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import com.google.inject.Inject;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.util.Timer;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+
+import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.DeployBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.PhaseTimings.Phase;
+import com.urbancode.jenkins.plugins.ucdeploy.UCDeployPublisher.UserBlock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous execution of the DeployStep. The application process request is
+ * submitted and polled from the request pool so the build gives up its executor
+ * while UCD runs the deployment. The Jenkins timer only schedules the next poll. The request id is persisted with
+ * the execution so the wait resumes after a Jenkins restart.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class DeployStepExecution extends AbstractStepExecutionImpl {
+    public static final Logger log = LoggerFactory.getLogger(DeployStepExecution.class);
+
+    private static final long serialVersionUID = 1L;
+
+    @Inject(optional = true)
+    private transient DeployStep step;
+
+    private String siteName;
+    private UserBlock altUser;
+    private DeployBlock deploy;
+    private String appProcUUID;
+    private long startTime;
+    private ProcessTraceReporter traceReporter;
+    private EnvironmentFanOut fanOut;
+    private boolean queued;
+    private PhaseTimings timings;
+    private int polls;
+
+    private transient volatile Future<?> task;
+    private transient DeploymentCoalescer.Ticket ticket;
+    private transient DefaultHttpClient altClient;  // not serializable, rebuilt after a restart
+    private transient StepCompletion completion;  // fresh after a restart, the step is running again
+    private transient boolean polling;
+    private transient boolean woken;
+    private transient int generation;
+
+    @Override
+    public boolean start() throws Exception {
+        siteName = step.getSiteName();
+        altUser = step.getAltUser();
+        deploy = step.getDeploy();
+
+        if (deploy == null) {
+            throw new AbortException("A deploy block is required to run the ucDeploy step.");
+        }
+
+        if (deploy.getCoalesce()) {
+            enqueue();
+        }
+        else {
+            task = RequestPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    submit();
+                }
+            });
+        }
+
+        return false;
+    }
+
+    /**
+     * Join the queue of the application environment, submitting the deployment once
+     * earlier deployments have finished
+     *
+     * @throws Exception
+     */
+    private synchronized void enqueue() throws Exception {
+        queued = true;
+        getTimings().begin(Phase.QUEUE_WAIT);
+        ticket = createDeployHelper().enqueueDeployment(deploy, new Runnable() {
+            @Override
+            public void run() {
+                RequestPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        dequeue();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Submit the deployment once its turn comes, or skip it when a newer build superseded it
+     */
+    private void dequeue() {
+        String supersededBy;
+        synchronized (this) {
+            if (!queued || ticket == null) {
+                return;
+            }
+            queued = false;
+            supersededBy = ticket.getSupersededBy();
+        }
+        getTimings().end(Phase.QUEUE_WAIT);
+
+        if (supersededBy == null) {
+            submit();
+            return;
+        }
+
+        try {
+            getContext().get(TaskListener.class).getLogger().println(
+                    new DeploymentCoalescer.SupersededException(supersededBy).getMessage());
+            getContext().get(Run.class).setResult(Result.NOT_BUILT);
+            succeed();
+        }
+        catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        if (!getCompletion().stop()) {
+            return;  // the running poll already claimed the completion and finishes the step
+        }
+
+        Future<?> current = task;
+        if (current != null) {
+            current.cancel(false);
+        }
+        if (appProcUUID != null) {
+            DeploymentCallbackAction.unregister(appProcUUID);
+        }
+        releaseTicket();
+        closeClient();
+        getContext().onFailure(cause);
+    }
+
+    /**
+     * What a resumed execution does next, depending on how far it got before the restart
+     */
+    enum ResumeAction {
+        POLL_FAN_OUT,   // keep polling the requests of a multi-environment deployment
+        ENQUEUE,        // take a new place in the in-memory deployment queue
+        FAIL,           // the request was never submitted, so there is nothing to wait for
+        POLL_REQUEST    // keep polling the submitted request
+    }
+
+    /**
+     * Decide how to continue after a restart
+     *
+     * @param fanningOut Whether the step deploys to several environments
+     * @param queued Whether the step was waiting in the deployment queue
+     * @param requestId The id of the submitted request, or null
+     * @return The action to take
+     */
+    static ResumeAction getResumeAction(boolean fanningOut, boolean queued, String requestId) {
+        if (fanningOut) {
+            return ResumeAction.POLL_FAN_OUT;
+        }
+        if (requestId == null) {
+            return queued ? ResumeAction.ENQUEUE : ResumeAction.FAIL;
+        }
+        return ResumeAction.POLL_REQUEST;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        switch (getResumeAction(fanOut != null, queued, appProcUUID)) {
+            case POLL_FAN_OUT:
+                schedulePoll(0);
+                break;
+
+            case ENQUEUE:
+                // the queue lives in memory only, so take a new place in it
+                try {
+                    enqueue();
+                }
+                catch (Exception ex) {
+                    fail(ex);
+                }
+                break;
+
+            case FAIL:
+                fail(new AbortException("Jenkins was restarted before the deployment request "
+                        + "was submitted to IBM UrbanCode Deploy."));
+                break;
+
+            default:
+                try {
+                    getContext().get(TaskListener.class).getLogger().println("Resuming wait for deployment request '"
+                            + appProcUUID + "'");
+                }
+                catch (Exception ex) {
+                    log.info("[UrbanCode Deploy] Unable to log to the build after resuming: " + ex.getMessage());
+                }
+                registerCallback();
+                schedulePoll(0);
+        }
+    }
+
+    /**
+     * Submit the application process request and begin polling for its result
+     */
+    private void submit() {
+        try {
+            DeployHelper deployHelper = createDeployHelper();
+
+            List<String> environments = deployHelper.resolveEnvironments(deploy);
+            if (environments.size() > 1) {
+                fanOut = new EnvironmentFanOut(environments, deploy.getMaxParallelEnvs(), deploy.getFailFast(),
+                        deploy.getSkipWait());
+                getTimings().begin(Phase.EXECUTION_WAIT);
+                pollFanOut();
+                return;
+            }
+
+            UUID requestId = deployHelper.requestDeployment(deploy);
+
+            if (requestId == null) {
+                if (!getCompletion().claim()) {
+                    return;
+                }
+                deployHelper.completeDeployment(deploy, null, DeployHelper.NO_CHANGES_RESULT, new Date().getTime());
+                succeed();
+                return;
+            }
+
+            appProcUUID = requestId.toString();
+            startTime = new Date().getTime();
+            if (deploy.getShowProgress()) {
+                traceReporter = new ProcessTraceReporter(appProcUUID);
+            }
+
+            if (deploy.getSkipWait()) {
+                getContext().get(TaskListener.class).getLogger().println("'Skip Wait' option selected. "
+                        + "Returning immmediately without waiting for the UCD process to complete.");
+                if (!getCompletion().claim()) {
+                    return;
+                }
+                deployHelper.completeDeployment(deploy, requestId, "", startTime);
+                succeed();
+            }
+            else {
+                getTimings().begin(Phase.EXECUTION_WAIT);
+                registerCallback();
+                if (deploy.getUseCallback()) {
+                    getContext().get(TaskListener.class).getLogger().println("Waiting for the UCD process to report back to "
+                            + DeploymentCallbackAction.getCallbackUrl(appProcUUID));
+                }
+                schedulePoll(getPollInterval());
+            }
+        }
+        catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Check the requests of a multi-environment deployment once, submitting more when there is room
+     */
+    private void pollFanOut() {
+        try {
+            DeployHelper deployHelper = createDeployHelper();
+
+            polls++;
+            if (fanOut.poll(deployHelper, deploy)) {
+                getTimings().end(Phase.EXECUTION_WAIT, polls, 0);
+                if (!getCompletion().claim()) {
+                    return;
+                }
+                fanOut.finish(deployHelper, deploy);
+                succeed();
+            }
+            else {
+                schedulePoll(DeployHelper.POLL_INTERVAL);
+            }
+        }
+        catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Check the application process request once, completing the step if it has finished
+     */
+    private void poll() {
+        if (fanOut != null) {
+            pollFanOut();
+            return;
+        }
+
+        try {
+            DeployHelper deployHelper = createDeployHelper();
+            String deploymentResult = deployHelper.checkDeploymentProcessResult(appProcUUID);
+            deployHelper.reportProgress(traceReporter);
+            polls++;
+
+            if (!DeployHelper.isDeploymentFinished(deploymentResult)) {
+                synchronized (this) {
+                    if (woken) {
+                        woken = false;
+                        schedulePoll(0);
+                    }
+                    else {
+                        schedulePoll(getPollInterval());
+                    }
+                }
+                return;
+            }
+
+            DeploymentCallbackAction.unregister(appProcUUID);
+            getTimings().end(Phase.EXECUTION_WAIT, polls, 0);
+            if (DeployHelper.isDeploymentFailed(deploymentResult)) {
+                throw new AbortException("Deployment process failed with result " + deploymentResult);
+            }
+
+            if (!getCompletion().claim()) {
+                return;
+            }
+            deployHelper.completeDeployment(deploy, UUID.fromString(appProcUUID), deploymentResult, startTime);
+            succeed();
+        }
+        catch (Exception ex) {
+            DeploymentCallbackAction.unregister(appProcUUID);
+            fail(ex);
+        }
+    }
+
+    private void succeed() {
+        if (!getCompletion().claim()) {
+            return;
+        }
+        releaseTicket();
+        recordTimings();
+        closeClient();
+        getContext().onSuccess(null);
+    }
+
+    private void fail(Throwable cause) {
+        if (!getCompletion().claim()) {
+            return;
+        }
+        releaseTicket();
+        recordTimings();
+        closeClient();
+        getContext().onFailure(cause);
+    }
+
+    /**
+     * Get the completion of the step. Claims are made before a poll completes the deployment
+     * and again by succeed and fail, which take over the claim the poll already holds.
+     */
+    private synchronized StepCompletion getCompletion() {
+        if (completion == null) {
+            completion = new StepCompletion();
+        }
+        return completion;
+    }
+
+    /**
+     * Add the phase timings of the step to its build
+     */
+    private void recordTimings() {
+        PhaseTimings stepTimings = getTimings();
+        stepTimings.endRunning();
+        try {
+            UCDeployTimingAction.record(getContext().get(Run.class), stepTimings);
+        }
+        catch (Exception ex) {
+            log.warn("[UrbanCode Deploy] Failed to record the phase timings of the deployment", ex);
+        }
+    }
+
+    /**
+     * Executions saved before timings were recorded have none
+     */
+    private synchronized PhaseTimings getTimings() {
+        if (timings == null) {
+            timings = new PhaseTimings();
+        }
+        return timings;
+    }
+
+    /**
+     * Let the next queued build of the application environment deploy
+     */
+    private synchronized void releaseTicket() {
+        queued = false;
+        if (ticket != null) {
+            DeploymentCoalescer.release(ticket);
+            ticket = null;
+        }
+    }
+
+    private long getPollInterval() {
+        if (deploy.getUseCallback()) {
+            return DeployHelper.CALLBACK_POLL_INTERVAL;
+        }
+        return DeployHelper.POLL_INTERVAL;
+    }
+
+    /**
+     * Check the request right away when the UCD process reports back, instead of
+     * waiting for the next safety net poll
+     */
+    private void registerCallback() {
+        if (!deploy.getUseCallback()) {
+            return;
+        }
+        DeploymentCallbackAction.register(appProcUUID, new Runnable() {
+            @Override
+            public void run() {
+                wake();
+            }
+        });
+    }
+
+    private synchronized void wake() {
+        if (polling) {
+            // a poll is running, have it check again as soon as it finishes
+            woken = true;
+        }
+        else {
+            if (task != null) {
+                task.cancel(false);
+            }
+            schedulePoll(0);
+        }
+    }
+
+    private synchronized void schedulePoll(long delay) {
+        if (getCompletion().isStopped()) {
+            return;
+        }
+        final int scheduled = ++generation;
+        polling = false;
+        final Runnable pollTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DeployStepExecution.this) {
+                    if (scheduled != generation || getCompletion().isStopped()) {
+                        return;  // superseded by a callback, or the step was stopped
+                    }
+                    polling = true;
+                }
+                poll();
+            }
+        };
+        // the timer only waits out the delay, the poll itself blocks on UCD and runs in the request pool
+        task = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                RequestPool.submit(pollTask);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the client of the alternative user, created once per execution so every poll
+     * shares its connection pool
+     *
+     * @param udSite The configured site
+     * @return The client of the alternative user
+     */
+    private synchronized DefaultHttpClient getAltClient(UCDeploySite udSite) {
+        if (altClient == null) {
+            altClient = udSite.getTempClient(altUser.getAltUsername(), altUser.getAltPassword());
+        }
+        return altClient;
+    }
+
+    /**
+     * Close the connections of the client of the alternative user, if one was created
+     */
+    private synchronized void closeClient() {
+        if (altClient != null) {
+            altClient.getConnectionManager().shutdown();
+            altClient = null;
+        }
+    }
+
+    /**
+     * Build a DeployHelper from the current step context. The context objects are
+     * looked up on every call since they are not available across a restart.
+     *
+     * @return The DeployHelper for the configured site
+     * @throws Exception
+     */
+    private DeployHelper createDeployHelper() throws Exception {
+        UCDeploySite udSite = GlobalConfig.getGlobalConfigDescriptor().getSite(siteName);
+
+        if (udSite == null) {
+            throw new AbortException("No IBM UrbanCode Deploy server is configured with the name '" + siteName + "'");
+        }
+
+        DefaultHttpClient udClient;  // not serializable
+        if (altUser != null) {
+            udClient = getAltClient(udSite);
+        }
+        else {
+            udClient = udSite.getClient();
+        }
+
+        TaskListener listener = getContext().get(TaskListener.class);
+        EnvVars envVars = getContext().get(EnvVars.class);
+        if (envVars == null) {
+            envVars = getContext().get(Run.class).getEnvironment(listener);
+        }
+
+        DeployHelper deployHelper = new DeployHelper(udSite.getUri(), udClient, listener, envVars, udSite.isSkipProps());
+        deployHelper.setWorkspace(getContext().get(FilePath.class));  // null outside of a node block
+        deployHelper.setTimings(getTimings());
+        return deployHelper;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP endpoint which a UCD process calls when an application process request
+ * finishes, so the waiting build checks the result immediately instead of on its
+ * next poll. The reported result is only logged; the build always confirms the
+ * status with the UCD server, so a forged callback cannot change its outcome.
+ *
+ * The endpoint is reached at ${JENKINS_URL}ucd-callback/notify?requestId=...&result=...
+ *
+ */
+@Extension
+public class DeploymentCallbackAction implements UnprotectedRootAction {
+    public static final Logger log = LoggerFactory.getLogger(DeploymentCallbackAction.class);
+
+    public static final String URL_NAME = "ucd-callback";
+
+    private static final ConcurrentMap<String, Runnable> waiters = new ConcurrentHashMap<String, Runnable>();
+
+    /**
+     * Register a callback to run when the UCD server reports on a request
+     *
+     * @param requestId The id of the application process request
+     * @param onCallback The task to run when the request is reported
+     */
+    public static void register(String requestId, Runnable onCallback) {
+        waiters.put(requestId, onCallback);
+    }
+
+    /**
+     * Stop waiting for reports on a request
+     *
+     * @param requestId The id of the application process request
+     */
+    public static void unregister(String requestId) {
+        waiters.remove(requestId);
+    }
+
+    /**
+     * Get the URL a UCD process should call when the given request finishes
+     *
+     * @param requestId The id of the application process request
+     * @return The callback URL
+     */
+    public static String getCallbackUrl(String requestId) {
+        String rootUrl = Jenkins.getInstance().getRootUrl();
+        if (rootUrl == null) {
+            rootUrl = "${JENKINS_URL}";
+        }
+        return rootUrl + URL_NAME + "/notify?requestId=" + requestId;
+    }
+
+    /**
+     * Wake the build waiting on an application process request
+     *
+     * @param requestId The id of the finished application process request
+     * @param result The result reported by the UCD process
+     * @param rsp
+     * @throws IOException
+     */
+    public void doNotify(
+            @QueryParameter("requestId") final String requestId,
+            @QueryParameter("result") final String result,
+            StaplerResponse rsp)
+    throws IOException {
+        Runnable waiter = null;
+        if (requestId != null) {
+            waiter = waiters.get(requestId);
+        }
+
+        if (waiter == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No build is waiting on this deployment request");
+            return;
+        }
+
+        log.info("[UrbanCode Deploy] Received callback for request '" + requestId + "' with result '" + result + "'");
+        waiter.run();
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().println("OK");
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Controller-wide queue which lets only the newest waiting deployment of an
+ * application environment run. One deployment per key runs at a time and at
+ * most one waits behind it; a waiting deployment is superseded as soon as a
+ * newer one arrives.
+ *
+ */
+public class DeploymentCoalescer {
+
+    /* Queue slot of each site, application and environment, guarded by itself */
+    private static final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+    private DeploymentCoalescer() {
+    }
+
+    /**
+     * Join the queue for an application environment
+     *
+     * @param key The site, application and environment being deployed
+     * @param buildName The name of the build requesting the deployment
+     * @param onChange Run when the ticket is ready or superseded, may be null
+     * @return The ticket of the deployment, which must always be released
+     */
+    public static Ticket enqueue(String key, String buildName, Runnable onChange) {
+        Ticket ticket = new Ticket(key, buildName, onChange);
+
+        synchronized (slots) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+
+            if (slot.active == null) {
+                slot.active = ticket;
+                ticket.ready();
+            }
+            else {
+                if (slot.pending != null) {
+                    slot.pending.supersede(buildName);
+                }
+                slot.pending = ticket;
+            }
+        }
+
+        return ticket;
+    }
+
+    /**
+     * Leave the queue, letting the waiting deployment run if this one was running
+     *
+     * @param ticket The ticket returned by enqueue
+     */
+    public static void release(Ticket ticket) {
+        synchronized (slots) {
+            Slot slot = slots.get(ticket.key);
+            if (slot == null) {
+                return;
+            }
+
+            if (slot.active == ticket) {
+                slot.active = slot.pending;
+                slot.pending = null;
+                if (slot.active != null) {
+                    slot.active.ready();
+                }
+            }
+            else if (slot.pending == ticket) {
+                slot.pending = null;
+            }
+
+            if (slot.active == null && slot.pending == null) {
+                slots.remove(ticket.key);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a waiting deployment was superseded by a newer build
+     */
+    public static class SupersededException extends AbortException {
+        private static final long serialVersionUID = 1L;
+
+        public SupersededException(String newerBuild) {
+            super("Deployment skipped, superseded by build " + newerBuild);
+        }
+    }
+
+    private static class Slot {
+        private Ticket active;
+        private Ticket pending;
+    }
+
+    /**
+     * The place of one deployment in the queue
+     */
+    public static class Ticket {
+        private final String key;
+        private final String buildName;
+        private final Runnable onChange;
+        private boolean ready;
+        private String supersededBy;
+
+        private Ticket(String key, String buildName, Runnable onChange) {
+            this.key = key;
+            this.buildName = buildName;
+            this.onChange = onChange;
+        }
+
+        public synchronized boolean isReady() {
+            return ready;
+        }
+
+        /**
+         * @return The name of the build which superseded this deployment, or null
+         */
+        public synchronized String getSupersededBy() {
+            return supersededBy;
+        }
+
+        /**
+         * Block until the deployment may run or has been superseded
+         *
+         * @return The name of the build which superseded this deployment, or null if it may run
+         * @throws InterruptedException
+         */
+        public synchronized String await() throws InterruptedException {
+            while (!ready && supersededBy == null) {
+                wait();
+            }
+            return supersededBy;
+        }
+
+        private void ready() {
+            synchronized (this) {
+                ready = true;
+                notifyAll();
+            }
+            if (onChange != null) {
+                onChange.run();
+            }
+        }
+
+        private void supersede(String newerBuild) {
+            synchronized (this) {
+                supersededBy = newerBuild;
+                notifyAll();
+            }
+            if (onChange != null) {
+                onChange.run();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return buildName;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import org.codehaus.jettison.json.JSONException;
+
+import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.DeployBlock;
+
+/**
+ * This class tracks a deployment to several environments. Each environment gets its
+ * own application process request, at most maxParallel requests run at once, and
+ * every running request is checked from one shared poll. The state is serializable
+ * so a Pipeline step can resume the wait after a restart.
+ *
+ */
+public class EnvironmentFanOut implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String FAILED_TO_START_RESULT = "FAILED TO START";
+
+    private LinkedList<String> pending;
+    private Map<String, Target> targets = new LinkedHashMap<String, Target>();
+    private int maxParallel;
+    private boolean failFast;
+    private boolean skipWait;
+
+    /**
+     * @param environments The environments to deploy to
+     * @param maxParallel The maximum number of requests to run at once, or 0 for no limit
+     * @param failFast Whether to stop as soon as one environment fails
+     * @param skipWait Whether to return once every request is submitted
+     */
+    public EnvironmentFanOut(List<String> environments, int maxParallel, boolean failFast, boolean skipWait) {
+        this.pending = new LinkedList<String>(environments);
+        this.maxParallel = maxParallel > 0 ? maxParallel : environments.size();
+        this.failFast = failFast;
+        this.skipWait = skipWait;
+    }
+
+    /**
+     * Check every running request once, then submit requests for waiting environments
+     * while there is room. The submits run together, and an environment whose submit
+     * fails is finished with that failure.
+     *
+     * @param deployHelper The DeployHelper used to reach the UCD server
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @return A boolean value stating whether every environment has finished
+     * @throws JSONException
+     * @throws IOException
+     */
+    public boolean poll(final DeployHelper deployHelper, final DeployBlock deployBlock) throws IOException, JSONException {
+        PrintStream logger = deployHelper.getListener().getLogger();
+        List<Callable<String>> checks = new ArrayList<Callable<String>>();
+        final List<Target> running = getRunning();
+
+        for (final Target target : running) {
+            if (target.requestId == null) {
+                // saved while its submit was still running, so there is no request to check
+                checks.add(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return FAILED_TO_START_RESULT;
+                    }
+                });
+                continue;
+            }
+            checks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return deployHelper.checkDeploymentProcessResult(target.requestId);
+                }
+            });
+        }
+
+        List<String> results;
+        try {
+            results = RequestPool.invokeAll(checks, deployHelper.getMaxConcurrentRequests());
+        }
+        catch (IOException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to check deployment results: " + ex.getMessage());
+        }
+
+        for (int i = 0; i < running.size(); i++) {
+            Target target = running.get(i);
+            String result = results.get(i);
+
+            if (!DeployHelper.isDeploymentFinished(result)) {
+                continue;
+            }
+
+            target.result = result;
+            target.finished = new Date().getTime();
+            logger.println("Deployment to environment '" + target.environment + "' finished with result " + result);
+
+            if (failFast && DeployHelper.isDeploymentFailed(result)) {
+                printSummary(logger);
+                throw new AbortException("Deployment to environment '" + target.environment + "' failed with result "
+                        + result + ". Remaining environments were not deployed: " + pending);
+            }
+        }
+
+        // environments with nothing to change finish at once, so keep filling the free slots
+        while (!pending.isEmpty() && getRunning().size() < maxParallel) {
+            List<Callable<Target>> submits = new ArrayList<Callable<Target>>();
+            int room = maxParallel - getRunning().size();
+
+            while (!pending.isEmpty() && submits.size() < room) {
+                final String environment = pending.removeFirst();
+                submits.add(new Callable<Target>() {
+                    @Override
+                    public Target call() {
+                        return submit(deployHelper, deployBlock, environment);
+                    }
+                });
+            }
+
+            List<Target> submitted;
+            try {
+                submitted = RequestPool.invokeAll(submits, deployHelper.getMaxConcurrentRequests());
+            }
+            catch (Exception ex) {
+                // each submit records its own failure, so only an interrupted wait gets here
+                throw new AbortException("Failed to submit deployments: " + ex.getMessage());
+            }
+
+            Target failedTarget = null;
+            for (Target target : submitted) {
+                targets.put(target.environment, target);
+                if (target.error != null && failedTarget == null) {
+                    failedTarget = target;
+                }
+            }
+
+            if (failFast && failedTarget != null) {
+                printSummary(logger);
+                throw new AbortException("Deployment to environment '" + failedTarget.environment
+                        + "' failed to start: " + failedTarget.error + ". Remaining environments were not deployed: "
+                        + pending);
+            }
+        }
+
+        return pending.isEmpty() && getRunning().isEmpty();
+    }
+
+    /**
+     * Submit the request of a single environment. A failed submit is recorded as the result of
+     * its environment instead of being thrown, so the other environments still get deployed.
+     *
+     * @param deployHelper The DeployHelper used to reach the UCD server
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @param environment The environment to deploy to
+     * @return The target of the environment, finished unless its request is running
+     */
+    private Target submit(DeployHelper deployHelper, DeployBlock deployBlock, String environment) {
+        Target target = new Target(environment);
+        target.submitted = new Date().getTime();
+
+        UUID requestId;
+        try {
+            requestId = deployHelper.requestDeployment(deployBlock, environment);
+        }
+        catch (Exception ex) {
+            deployHelper.getListener().getLogger().println("Failed to request the deployment to environment '"
+                    + environment + "': " + ex.getMessage());
+            target.result = FAILED_TO_START_RESULT;
+            target.error = ex.getMessage();
+            target.finished = new Date().getTime();
+            return target;
+        }
+
+        if (requestId == null) {
+            target.result = DeployHelper.NO_CHANGES_RESULT;
+            target.finished = target.submitted;
+            return target;
+        }
+
+        target.requestId = requestId.toString();
+        if (skipWait) {
+            target.result = "NOT WAITED";
+            target.finished = target.submitted;
+        }
+        return target;
+    }
+
+    /**
+     * Print the timing summary, import application properties and fail if any environment failed
+     *
+     * @param deployHelper The DeployHelper used to reach the UCD server
+     * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @throws AbortException
+     */
+    public void finish(DeployHelper deployHelper, DeployBlock deployBlock) throws AbortException {
+        PrintStream logger = deployHelper.getListener().getLogger();
+        printSummary(logger);
+
+        List<String> failed = new ArrayList<String>();
+        for (Target target : targets.values()) {
+            if (DeployHelper.isDeploymentFailed(target.result)) {
+                failed.add(target.environment);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new AbortException("Deployment process failed in environments " + failed);
+        }
+
+        deployHelper.importApplicationProperties(deployBlock);
+    }
+
+    /**
+     * Get the ids of the requests which have not finished yet
+     *
+     * @return The running application process request ids
+     */
+    public List<String> getRunningRequestIds() {
+        List<String> requestIds = new ArrayList<String>();
+        for (Target target : getRunning()) {
+            requestIds.add(target.requestId);
+        }
+        return requestIds;
+    }
+
+    private List<Target> getRunning() {
+        List<Target> running = new ArrayList<Target>();
+        for (Target target : targets.values()) {
+            if (target.result == null) {
+                running.add(target);
+            }
+        }
+        return running;
+    }
+
+    private void printSummary(PrintStream logger) {
+        logger.println("Deployment summary:");
+        for (Target target : targets.values()) {
+            String result = target.result != null ? target.result : "RUNNING";
+            long end = target.finished > 0 ? target.finished : new Date().getTime();
+            String request = target.requestId != null ? "request " + target.requestId
+                    : target.error != null ? target.error : "no request";
+            logger.println("  " + target.environment + " : " + result + " in " + ((end - target.submitted) / 1000)
+                    + " seconds (" + request + ")");
+        }
+    }
+
+    /**
+     * The application process request of a single environment
+     */
+    private static class Target implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String environment;
+        private String requestId;
+        private String result;
+        private long submitted;
+        private long finished;
+        private String error;
+
+        private Target(String environment) {
+            this.environment = environment;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * A controller-wide cache of UCD lookups whose entries expire after a fixed time
+ *
+ * @param <K> The type of the lookup key
+ * @param <V> The type of the cached value
+ */
+public class ExpiringCache<K, V> {
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final long ttl;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttl The number of milliseconds an entry stays valid
+     */
+    public ExpiringCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get a cached value
+     *
+     * @param key The lookup key
+     * @return The cached value, or null if it is missing or expired
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the size and hit counts of the cache
+     *
+     * @return The metrics as a JSON object
+     * @throws JSONException
+     */
+    public JSONObject getMetrics() throws JSONException {
+        JSONObject metrics = new JSONObject();
+        metrics.put("size", size());
+        metrics.put("hits", getHits());
+        metrics.put("misses", getMisses());
+        return metrics;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        private Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder events for the busiest work of the plugin, so a recording taken
+ * during a slow release shows UCD calls next to GC and socket events. Event types are
+ * defined at runtime through the jdk.jfr API of the running JVM, found by reflection
+ * since the plugin is built for older Java versions. On JVMs without JFR every event
+ * is a no-op.
+ *
+ * Every event carries the site, operation, component and bytes transferred, and its
+ * duration runs from begin() to commit().
+ *
+ */
+public final class FlightRecorderEvents {
+    public static final Logger log = LoggerFactory.getLogger(FlightRecorderEvents.class);
+
+    /* Prefix of the event names shown in a recording */
+    private static final String EVENT_PREFIX = "com.urbancode.ucdeploy.";
+
+    private static final String CATEGORY = "IBM UrbanCode Deploy";
+
+    public enum Type {
+        REST_CALL("RestCall", "UCD REST Call"),
+        FILE_UPLOAD("FileUpload", "UCD File Upload"),
+        STATUS_POLL("StatusPoll", "UCD Status Poll"),
+        ENV_VAR_SAVE("EnvVarSave", "UCD Environment Variable Save");
+
+        private final String eventName;
+        private final String label;
+
+        Type(String eventName, String label) {
+            this.eventName = eventName;
+            this.label = label;
+        }
+    }
+
+    /* Event methods of the running JVM, null when JFR is not available */
+    private static Method newEvent;
+    private static Method begin;
+    private static Method end;
+    private static Method shouldCommit;
+    private static Method commit;
+    private static Method set;
+    private static volatile Object[] factories;
+
+    static {
+        try {
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> nameAnnotation = Class.forName("jdk.jfr.Name");
+            Class<?> labelAnnotation = Class.forName("jdk.jfr.Label");
+            Class<?> categoryAnnotation = Class.forName("jdk.jfr.Category");
+
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+            Method create = eventFactory.getMethod("create", List.class, List.class);
+
+            // the fields shared by every event, in the order of the indexes used by Event.set
+            List<Object> fields = Arrays.<Object>asList(
+                    field.newInstance(String.class, "site"),
+                    field.newInstance(String.class, "operation"),
+                    field.newInstance(String.class, "component"),
+                    field.newInstance(long.class, "bytes"));
+
+            Object[] created = new Object[Type.values().length];
+            for (Type type : Type.values()) {
+                List<Object> annotations = new ArrayList<Object>();
+                annotations.add(annotation.newInstance(nameAnnotation, EVENT_PREFIX + type.eventName));
+                annotations.add(annotation.newInstance(labelAnnotation, type.label));
+                annotations.add(annotation.newInstance(categoryAnnotation, new String[] {CATEGORY}));
+                created[type.ordinal()] = create.invoke(null, annotations, fields);
+            }
+
+            newEvent = eventFactory.getMethod("newEvent");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            shouldCommit = event.getMethod("shouldCommit");
+            commit = event.getMethod("commit");
+            set = event.getMethod("set", int.class, Object.class);
+            factories = created;
+        }
+        catch (ClassNotFoundException ex) {
+            log.debug("[UrbanCode Deploy] Java Flight Recorder is not available, no events are emitted");
+        }
+        catch (Throwable ex) {
+            log.info("[UrbanCode Deploy] Failed to define Java Flight Recorder events: " + ex);
+            factories = null;
+        }
+    }
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * @return Whether events are sent to the flight recorder of this JVM
+     */
+    public static boolean isAvailable() {
+        return factories != null;
+    }
+
+    /**
+     * Start timing an event
+     *
+     * @param type The type of the event
+     * @return The started event, which does nothing when JFR is not available
+     */
+    public static Event begin(Type type) {
+        Object[] available = factories;
+        if (available == null) {
+            return Event.DISABLED;
+        }
+
+        try {
+            Object event = newEvent.invoke(available[type.ordinal()]);
+            begin.invoke(event);
+            return new Event(event);
+        }
+        catch (Exception ex) {
+            disable(ex);
+            return Event.DISABLED;
+        }
+    }
+
+    /**
+     * Stop sending events after the JFR API failed in a way it should not
+     */
+    private static void disable(Exception ex) {
+        if (factories != null) {
+            factories = null;
+            log.info("[UrbanCode Deploy] Java Flight Recorder events are disabled: " + ex);
+        }
+    }
+
+    /**
+     * An event which has begun. Events may be dropped without being committed.
+     */
+    public static class Event {
+        private static final Event DISABLED = new Event(null);
+
+        private final Object event;
+
+        private Event(Object event) {
+            this.event = event;
+        }
+
+        /**
+         * End the event and send it to the flight recorder, if it is recording events of its type
+         *
+         * @param site The url of the UCD server
+         * @param operation What the plugin was doing
+         * @param component The component involved, or null
+         * @param bytes The number of bytes transferred
+         */
+        public void commit(String site, String operation, String component, long bytes) {
+            if (event == null) {
+                return;
+            }
+
+            try {
+                end.invoke(event);
+                if (Boolean.TRUE.equals(shouldCommit.invoke(event))) {
+                    set.invoke(event, 0, site);
+                    set.invoke(event, 1, operation);
+                    set.invoke(event, 2, component);
+                    set.invoke(event, 3, bytes);
+                    commit.invoke(event);
+                }
+            }
+            catch (Exception ex) {
+                disable(ex);
+            }
+        }
+    }
+}
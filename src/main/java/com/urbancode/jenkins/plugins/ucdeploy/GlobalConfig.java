@@ -81,6 +81,27 @@ public class GlobalConfig extends JobProperty<Job<?, ?>> {
             return sites.toArray(new UCDeploySite[size]);
         }
 
+        /**
+         * Find the configured site with the given profile name, defaulting to the
+         * first site when no name is given
+         *
+         * @param siteName The profile name of the site
+         * @return The matching UCDeploySite or null
+         */
+        public UCDeploySite getSite(String siteName) {
+            UCDeploySite[] sites = getSites();
+            if (siteName == null && sites.length > 0) {
+                // default
+                return sites[0];
+            }
+            for (UCDeploySite site : sites) {
+                if (site.getDisplayName().equals(siteName)) {
+                    return site;
+                }
+            }
+            return null;
+        }
+
         @DataBoundSetter
         public void setSites(UCDeploySite[] sitesArray){
             sites.replaceBy(Arrays.asList(sitesArray));
@@ -0,0 +1,408 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jettison.json.JSONException;
+
+/**
+ * Reads a JSON document one token at a time, so large UCD responses can be scanned for
+ * the few fields needed without holding the whole response or its object tree in memory.
+ * A scan may stop as soon as it has found what it is looking for.
+ *
+ */
+public class JsonStreamReader implements Closeable {
+
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    /**
+     * Extracts a result from a streamed response
+     *
+     * @param <T> The type of the result
+     */
+    public interface Parser<T> {
+        T parse(JsonStreamReader reader) throws IOException, JSONException;
+    }
+
+    /* Scopes of the nesting stack */
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private int[] stack = new int[32];
+    private int stackSize = 0;
+    private int pushedBack = -1;
+    private Token peeked;
+    private String peekedValue;
+
+    public JsonStreamReader(Reader in) {
+        this.in = new BufferedReader(in);
+        push(EMPTY_DOCUMENT);
+    }
+
+    /**
+     * @return The number of arrays and objects currently open
+     */
+    public int getDepth() {
+        return stackSize - 1;
+    }
+
+    /**
+     * @return Whether the whole document has been read, apart from trailing whitespace
+     */
+    public boolean isComplete() {
+        return stackSize == 1 && stack[0] == NONEMPTY_DOCUMENT && (peeked == null || peeked == Token.END_DOCUMENT);
+    }
+
+    /**
+     * Look at the next token without consuming it
+     *
+     * @return The next token
+     * @throws IOException
+     */
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+
+        int scope = stack[stackSize - 1];
+        int c;
+
+        switch (scope) {
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return setPeeked(Token.END_ARRAY, null);
+                }
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return setPeeked(Token.END_ARRAY, null);
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                c = nextNonWhitespace();
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                stack[stackSize - 1] = DANGLING_NAME;
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return setPeeked(Token.END_OBJECT, null);
+                }
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+                return setPeeked(Token.NAME, readString());
+            case DANGLING_NAME:
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                c = nextNonWhitespace();
+                break;
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                c = nextNonWhitespace();
+                break;
+            default:
+                if (nextNonWhitespace() == -1) {
+                    return setPeeked(Token.END_DOCUMENT, null);
+                }
+                throw syntaxError("Expected the end of the document");
+        }
+
+        switch (c) {
+            case -1:
+                throw syntaxError("Unexpected end of the document");
+            case '[':
+                return setPeeked(Token.BEGIN_ARRAY, null);
+            case '{':
+                return setPeeked(Token.BEGIN_OBJECT, null);
+            case '"':
+                return setPeeked(Token.STRING, readString());
+            default:
+                String literal = readLiteral(c);
+                if (literal.equals("true") || literal.equals("false")) {
+                    return setPeeked(Token.BOOLEAN, literal);
+                }
+                if (literal.equals("null")) {
+                    return setPeeked(Token.NULL, null);
+                }
+                return setPeeked(Token.NUMBER, literal);
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    public String nextName() throws IOException {
+        return expect(Token.NAME);
+    }
+
+    /**
+     * Read a string, number or boolean value as text
+     *
+     * @return The text of the value, or null for a JSON null
+     * @throws IOException
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.NULL) {
+            peeked = null;
+            return null;
+        }
+        if (token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN) {
+            throw syntaxError("Expected a value but was " + token);
+        }
+        return expect(token);
+    }
+
+    /**
+     * Skip the next value, including every array and object nested in it
+     *
+     * @throws IOException
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token token = peek();
+            peeked = null;
+            if (token == Token.BEGIN_ARRAY) {
+                push(EMPTY_ARRAY);
+                depth++;
+            }
+            else if (token == Token.BEGIN_OBJECT) {
+                push(EMPTY_OBJECT);
+                depth++;
+            }
+            else if (token == Token.END_ARRAY || token == Token.END_OBJECT) {
+                stackSize--;
+                depth--;
+            }
+            else if (token == Token.END_DOCUMENT) {
+                throw syntaxError("Unexpected end of the document");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Read the scalar fields of the next object, skipping every other field
+     *
+     * @param names The names of the fields to read
+     * @return The text of each field found
+     * @throws IOException
+     */
+    public Map<String, String> readFields(String... names) throws IOException {
+        List<String> wanted = Arrays.asList(names);
+        Map<String, String> fields = new HashMap<String, String>();
+
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            Token token = peek();
+            if (wanted.contains(name) && token != Token.BEGIN_ARRAY && token != Token.BEGIN_OBJECT) {
+                fields.put(name, nextString());
+            }
+            else {
+                skipValue();
+            }
+        }
+        endObject();
+
+        return fields;
+    }
+
+    /**
+     * Move into the next object up to the value of a field, skipping the fields before it
+     *
+     * @param name The name of the field
+     * @return Whether the field was found, otherwise the object has been read to its end
+     * @throws IOException
+     */
+    public boolean findField(String name) throws IOException {
+        beginObject();
+        while (hasNext()) {
+            if (nextName().equals(name)) {
+                return true;
+            }
+            skipValue();
+        }
+        endObject();
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Token setPeeked(Token token, String value) {
+        peeked = token;
+        peekedValue = value;
+        return token;
+    }
+
+    private String expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw syntaxError("Expected " + token + " but was " + peeked);
+        }
+        peeked = null;
+        return peekedValue;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != -1) {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        return in.read();
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    private String readString() throws IOException {
+        StringBuilder builder = new StringBuilder();
+
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append((char) c);
+                continue;
+            }
+
+            c = read();
+            switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    int value = 0;
+                    for (int i = 0; i < hex.length; i++) {
+                        int h = read();
+                        if (h == -1) {
+                            throw syntaxError("Unterminated escape sequence");
+                        }
+                        hex[i] = (char) h;
+                        // only ASCII hex digits, parseInt would also accept a sign
+                        int digit = h < 128 ? Character.digit(hex[i], 16) : -1;
+                        if (digit < 0) {
+                            throw syntaxError("Invalid escape sequence \\u" + new String(hex, 0, i + 1));
+                        }
+                        value = value * 16 + digit;
+                    }
+                    builder.append((char) value);
+                    break;
+                case -1:
+                    throw syntaxError("Unterminated escape sequence");
+                default:
+                    builder.append((char) c);
+            }
+        }
+    }
+
+    private String readLiteral(int first) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c = first;
+
+        while (c != -1 && c != ',' && c != ']' && c != '}' && c != ':'
+                && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            builder.append((char) c);
+            c = read();
+        }
+        pushedBack = c;
+
+        if (builder.length() == 0) {
+            throw syntaxError("Unexpected character '" + (char) first + "'");
+        }
+        return builder.toString();
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON response: " + message);
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.ProxyConfiguration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads component version and property manifests one line at a time. A manifest is
+ * either given inline, or referenced with a single line of the form @LOCATION, where
+ * the location is an http(s) URL or a file path relative to the workspace. File paths
+ * may not be absolute or leave the workspace. Referenced manifests are streamed and are
+ * not expanded with build environment variables.
+ *
+ * Blank lines are skipped. In referenced manifests, lines starting with # are skipped
+ * as well, and an entry given twice is an error. Inline manifests keep their earlier
+ * rules, where the last value of a property wins. Errors report the line they were
+ * found on.
+ *
+ */
+public class ManifestReader {
+
+    /* Marks a field which references a manifest instead of holding it */
+    public static final String REFERENCE_PREFIX = "@";
+
+    private final BufferedReader reader;
+    private final String source;
+    private final boolean referenced;
+
+    private ManifestReader(Reader reader, String source, boolean referenced) {
+        this.reader = new BufferedReader(reader);
+        this.source = source;
+        this.referenced = referenced;
+    }
+
+    /**
+     * Open a manifest field, following a reference to a workspace file or URL
+     *
+     * @param value The expanded field value
+     * @param workspace The workspace to resolve files against, or null when files may not be read
+     * @return The manifest reader, which must be closed
+     * @throws AbortException When the referenced manifest can not be opened
+     */
+    public static ManifestReader open(String value, FilePath workspace) throws AbortException {
+        String trimmed = value == null ? "" : value.trim();
+
+        if (!trimmed.startsWith(REFERENCE_PREFIX) || trimmed.contains("\n")) {
+            return new ManifestReader(new StringReader(value == null ? "" : value), "the inline manifest", false);
+        }
+
+        String location = trimmed.substring(REFERENCE_PREFIX.length()).trim();
+        try {
+            if (location.matches("(?i)https?://.*")) {
+                return new ManifestReader(new InputStreamReader(
+                        ProxyConfiguration.open(new URL(location)).getInputStream(), "UTF-8"), location, true);
+            }
+            if (workspace == null) {
+                throw new AbortException("The manifest file '" + location + "' can only be read from a workspace");
+            }
+            if (!isWorkspacePath(location)) {
+                throw new AbortException("The manifest file '" + location + "' must be a relative path inside the "
+                        + "workspace");
+            }
+            FilePath file = workspace.child(location);
+            if (!file.exists()) {
+                throw new AbortException("The manifest file '" + file.getRemote() + "' does not exist");
+            }
+            return new ManifestReader(new InputStreamReader(file.read(), "UTF-8"), location, true);
+        }
+        catch (AbortException ex) {
+            throw ex;
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to open the manifest '" + location + "': " + ex.getMessage());
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while opening the manifest '" + location + "'");
+        }
+    }
+
+    /**
+     * Check that a file path stays inside the workspace it is resolved against
+     *
+     * @param location The path of the file
+     * @return Whether the path is relative and has no .. segment
+     */
+    static boolean isWorkspacePath(String location) {
+        if (location.isEmpty() || location.startsWith("/") || location.startsWith("\\")
+                || location.matches("(?s)[A-Za-z]:.*")) {
+            return false;
+        }
+        for (String segment : location.split("[/\\\\]")) {
+            if (segment.trim().equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read component:version pairs, allowing several versions of a component
+     *
+     * @return The versions of each component, in the order given
+     * @throws AbortException When a line is malformed, or a pair is given twice in a referenced manifest
+     */
+    public Map<String, List<String>> readComponentVersions() throws AbortException {
+        final Map<String, List<String>> componentVersions = new LinkedHashMap<String, List<String>>();
+        final Map<String, Integer> seen = new HashMap<String, Integer>();
+
+        read(new LineParser() {
+            @Override
+            void parse(String line, int lineNumber) throws AbortException {
+                int delim = line.indexOf(':');
+
+                if (delim <= 0) {
+                    throw error("Component/version pairs must be of the form {Component}:{Version #}", lineNumber);
+                }
+
+                String component = line.substring(0, delim).trim();
+                String version = line.substring(delim + 1).trim();
+
+                Integer firstLine = seen.put(component + ":" + version, lineNumber);
+                if (firstLine != null && referenced) {
+                    throw error("Version '" + version + "' of component '" + component
+                            + "' was already given on line " + firstLine, lineNumber);
+                }
+
+                List<String> versionList = componentVersions.get(component);
+                if (versionList == null) {
+                    versionList = new ArrayList<String>();
+                    componentVersions.put(component, versionList);
+                }
+                versionList.add(version);
+            }
+        });
+
+        return componentVersions;
+    }
+
+    /**
+     * Read name=value properties
+     *
+     * @return The properties, in the order given
+     * @throws AbortException When a line is malformed, or a property is given twice in a referenced manifest
+     */
+    public Map<String, String> readProperties() throws AbortException {
+        final Map<String, String> properties = new LinkedHashMap<String, String>();
+        final Map<String, Integer> seen = new HashMap<String, Integer>();
+
+        read(new LineParser() {
+            @Override
+            void parse(String line, int lineNumber) throws AbortException {
+                String[] propDef = line.split("=", 2);
+
+                if (propDef.length < 2) {
+                    throw error("Missing property delimiter '=' in property definition '" + line + "'", lineNumber);
+                }
+
+                String propName = propDef[0].trim();
+                Integer firstLine = seen.put(propName, lineNumber);
+                if (firstLine != null && referenced) {
+                    throw error("Property '" + propName + "' was already given on line " + firstLine, lineNumber);
+                }
+
+                properties.put(propName, propDef[1].trim());
+            }
+        });
+
+        return properties;
+    }
+
+    private void read(LineParser parser) throws AbortException {
+        int lineNumber = 0;
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (!trimmed.isEmpty() && !(referenced && trimmed.startsWith("#"))) {
+                    parser.parse(line, lineNumber);
+                }
+            }
+        }
+        catch (AbortException ex) {
+            throw ex;
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to read " + source + " after line " + lineNumber + ": " + ex.getMessage());
+        }
+        finally {
+            try {
+                reader.close();
+            }
+            catch (IOException ex) {
+                // nothing left to read
+            }
+        }
+    }
+
+    private AbortException error(String message, int lineNumber) {
+        return new AbortException(message + " (line " + lineNumber + " of " + source + ")");
+    }
+
+    private abstract static class LineParser {
+        abstract void parse(String line, int lineNumber) throws AbortException;
+    }
+}
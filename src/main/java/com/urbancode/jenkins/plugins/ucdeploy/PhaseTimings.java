@@ -0,0 +1,144 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.Serializable;
+
+/**
+ * Wall time, call count and bytes of each phase of a build step. A phase may run
+ * several times, also in parallel, and its wall time only counts the time at least
+ * one of them was running. Timings are serializable so phases run on an agent can
+ * be returned to the controller.
+ *
+ */
+public class PhaseTimings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Phase {
+        COMPONENT("Component create/tag"),
+        UPLOAD("Upload"),
+        VERSION_PROPERTIES("Version properties"),
+        LINK("Link"),
+        PREFLIGHT("Pre-deploy checks"),
+        SNAPSHOT("Snapshot work"),
+        REQUEST("Request submit"),
+        QUEUE_WAIT("Queue wait"),
+        EXECUTION_WAIT("Execution wait"),
+        PROPERTY_FETCH("Property fetch");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final long[] wallMillis = new long[Phase.values().length];
+    private final long[] calls = new long[Phase.values().length];
+    private final long[] bytes = new long[Phase.values().length];
+    private final int[] running = new int[Phase.values().length];
+    private final long[] runningSince = new long[Phase.values().length];
+
+    /**
+     * Mark the start of a phase, which must be ended in a finally block
+     *
+     * @param phase The phase which started
+     */
+    public synchronized void begin(Phase phase) {
+        int i = phase.ordinal();
+        if (running[i]++ == 0) {
+            runningSince[i] = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Mark the end of a phase which made a single call
+     *
+     * @param phase The phase which ended
+     */
+    public void end(Phase phase) {
+        end(phase, 1, 0);
+    }
+
+    /**
+     * Mark the end of a phase
+     *
+     * @param phase The phase which ended
+     * @param callCount The number of calls made while the phase ran
+     * @param byteCount The number of bytes transferred while the phase ran
+     */
+    public synchronized void end(Phase phase, long callCount, long byteCount) {
+        int i = phase.ordinal();
+        if (running[i] == 0) {
+            return;
+        }
+        if (--running[i] == 0) {
+            wallMillis[i] += System.currentTimeMillis() - runningSince[i];
+        }
+        calls[i] += callCount;
+        bytes[i] += byteCount;
+    }
+
+    /**
+     * End every phase which is still running, such as when a step fails part way
+     */
+    public synchronized void endRunning() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < running.length; i++) {
+            if (running[i] > 0) {
+                running[i] = 0;
+                wallMillis[i] += now - runningSince[i];
+            }
+        }
+    }
+
+    /**
+     * Add the finished phases of other timings, such as those recorded on an agent
+     *
+     * @param other The timings to add
+     */
+    public void merge(PhaseTimings other) {
+        if (other == null || other == this) {
+            return;
+        }
+        for (Phase phase : Phase.values()) {
+            long otherMillis = other.getWallMillis(phase);
+            long otherCalls = other.getCalls(phase);
+            long otherBytes = other.getBytes(phase);
+            synchronized (this) {
+                int i = phase.ordinal();
+                wallMillis[i] += otherMillis;
+                calls[i] += otherCalls;
+                bytes[i] += otherBytes;
+            }
+        }
+    }
+
+    public synchronized long getWallMillis(Phase phase) {
+        return wallMillis[phase.ordinal()];
+    }
+
+    public synchronized long getCalls(Phase phase) {
+        return calls[phase.ordinal()];
+    }
+
+    public synchronized long getBytes(Phase phase) {
+        return bytes[phase.ordinal()];
+    }
+
+    /**
+     * @return Whether the phase ran at least once
+     */
+    public synchronized boolean hasRun(Phase phase) {
+        return calls[phase.ordinal()] > 0 || wallMillis[phase.ordinal()] > 0;
+    }
+}
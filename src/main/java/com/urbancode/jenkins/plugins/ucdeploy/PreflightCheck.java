@@ -0,0 +1,132 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.http.client.HttpClient;
+
+/**
+ * Runs the read-only validation queries of a build step concurrently before anything
+ * is changed on the UCD server, and reports every problem found at once. Each check
+ * returns a description of the problem, or null when it passed.
+ *
+ */
+public class PreflightCheck {
+
+    private PreflightCheck() {
+    }
+
+    /**
+     * A check which always reports a problem, for configuration found invalid without asking the server
+     *
+     * @param problem The description of the problem
+     * @return The check
+     */
+    public static Callable<String> problem(final String problem) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return problem;
+            }
+        };
+    }
+
+    /**
+     * A check which reports a problem when the server does not return a resource
+     *
+     * @param client The client to send the request with
+     * @param uri The uri of the resource
+     * @param problem The description of the problem if the resource is missing
+     * @return The check
+     */
+    public static Callable<String> exists(final HttpClient client, final URI uri, final String problem) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    UCDeploySite.executeGet(client, uri);
+                    return null;
+                }
+                catch (IOException ex) {
+                    return problem + " (" + ex.getMessage() + ")";
+                }
+            }
+        };
+    }
+
+    /**
+     * Run every check and fail if any of them found a problem
+     *
+     * @param checks The checks to run
+     * @param listener The build listener to report to
+     * @param maxConcurrency The maximum number of checks to run at once
+     * @throws AbortException Listing every problem found
+     */
+    public static void verify(List<Callable<String>> checks, TaskListener listener, int maxConcurrency)
+    throws AbortException {
+        if (checks.isEmpty()) {
+            return;
+        }
+
+        long startTime = new Date().getTime();
+        List<Callable<String>> guarded = new ArrayList<Callable<String>>();
+
+        for (final Callable<String> check : checks) {
+            guarded.add(new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        return check.call();
+                    }
+                    catch (Exception ex) {
+                        return ex.getMessage();
+                    }
+                }
+            });
+        }
+
+        List<String> results;
+        try {
+            results = RequestPool.invokeAll(guarded, maxConcurrency);
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while validating the configuration");
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to validate the configuration: " + ex.getMessage());
+        }
+
+        List<String> problems = new ArrayList<String>();
+        for (String result : results) {
+            if (result != null) {
+                problems.add(result);
+            }
+        }
+
+        if (!problems.isEmpty()) {
+            StringBuilder message = new StringBuilder("Validation against IBM UrbanCode Deploy found "
+                    + problems.size() + " problem(s):");
+            for (String problem : problems) {
+                message.append("\n  - ").append(problem);
+            }
+            throw new AbortException(message.toString());
+        }
+
+        listener.getLogger().println("Validated the configuration with " + checks.size() + " checks in "
+                + (new Date().getTime() - startTime) + " ms");
+    }
+}
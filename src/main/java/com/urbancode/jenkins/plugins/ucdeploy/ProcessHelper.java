@@ -12,8 +12,17 @@ import hudson.EnvVars;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 
+import org.apache.http.impl.client.DefaultHttpClient;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -28,18 +37,44 @@ import com.urbancode.ud.client.ApplicationClient;
  */
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class ProcessHelper {
+    /* Milliseconds an application process is known to exist */
+    private static final long PROCESS_LOOKUP_TTL = 30 * 60 * 1000;
+
+    /* Milliseconds the unfilled request properties of a process are trusted */
+    private static final long REQUEST_PROPERTY_TTL = 5 * 60 * 1000;
+
+    /* Application processes found on the server, keyed by server, user, application and process name */
+    private static final ExpiringCache<String, Boolean> existingProcesses =
+            new ExpiringCache<String, Boolean>(PROCESS_LOOKUP_TTL);
+
+    /* Required request properties left unfilled, keyed by server, user, application, process, snapshot
+     * and the names of the supplied properties along with whether each value is blank */
+    private static final ExpiringCache<String, List<String>> unfilledRequestProperties =
+            new ExpiringCache<String, List<String>>(REQUEST_PROPERTY_TTL);
+
     private ApplicationClient appClient;
     private TaskListener listener;
     private EnvVars envVars;
     private String description = "Created from Jenkins";
+    private String clientKey;
 
-    public ProcessHelper(ApplicationClient appClient, TaskListener listener, EnvVars envVars) {
-        this.appClient = appClient;
+    public ProcessHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener, EnvVars envVars) {
+        appClient = new ApplicationClient(ucdUrl, httpClient);
         this.listener = listener;
         this.envVars = envVars;
+        // lookups are only shared between clients of the same server and user
+        clientKey = ucdUrl + "|" + UCDeploySite.getClientIdentity(httpClient);
+    }
+
+    public static ExpiringCache<String, Boolean> getProcessCache() {
+        return existingProcesses;
+    }
+
+    public static ExpiringCache<String, List<String>> getRequestPropertyCache() {
+        return unfilledRequestProperties;
     }
 
-    public static class CreateProcessBlock {
+    public static class CreateProcessBlock implements Serializable {
         private String processComponent;
 
         @DataBoundConstructor
@@ -67,21 +102,13 @@ public class ProcessHelper {
         String componentProcess = envVars.expand(processBlock.getProcessComponent());
 
         // check if application process already exists
-        JSONObject appProcObj = null;
-        try {
-            listener.getLogger().println("Checking the UCD server for existing application process '" + applicationProcess + "'");
-            appProcObj = appClient.getApplicationProcess(application, applicationProcess);
+        listener.getLogger().println("Checking the UCD server for existing application process '" + applicationProcess + "'");
+        // a cached answer could skip creating a process which was deleted since
+        if (lookupProcess(application, applicationProcess)) {
             listener.getLogger().println("The application process already exists on the UCD server");
         }
-        catch (IOException ex) {
+        else {
             listener.getLogger().println("The application process does not exist on the UCD server");
-        }
-        catch (JSONException ex) {
-            throw new AbortException("An error occurred while checking the UCD server for the application process : "
-                    + ex.getMessage());
-        }
-
-        if (appProcObj == null) {
             listener.getLogger().println("Creating new application process '" + applicationProcess + "'");
             try {
                 String applicationProcessJson = constructAppProcJson(
@@ -91,6 +118,8 @@ public class ProcessHelper {
                     componentProcess);
                 UUID appProcUUID = appClient.createApplicationProcess(applicationProcessJson);
                 listener.getLogger().println("Successfully created the application process with UUID '" + appProcUUID);
+                existingProcesses.put(getProcessKey(application, applicationProcess), Boolean.TRUE);
+                unfilledRequestProperties.invalidateAll();
             }
             catch (IOException ex) {
                 throw new AbortException("An error occurred while creating a new application process: " + ex.getMessage());
@@ -102,6 +131,108 @@ public class ProcessHelper {
         }
     }
 
+    /**
+     * Check whether an application process exists, trusting an earlier positive answer for this server and user.
+     * The answer is dropped once a later call for the process fails, see forgetProcess.
+     *
+     * @param application The name of the application
+     * @param applicationProcess The name of the application process
+     * @return Whether the application process exists
+     * @throws AbortException
+     */
+    public boolean processExists(String application, String applicationProcess) throws AbortException {
+        if (existingProcesses.get(getProcessKey(application, applicationProcess)) != null) {
+            return true;
+        }
+        return lookupProcess(application, applicationProcess);
+    }
+
+    /**
+     * Forget that an application process exists, after a call for it failed
+     *
+     * @param application The name of the application
+     * @param applicationProcess The name of the application process
+     */
+    public void forgetProcess(String application, String applicationProcess) {
+        existingProcesses.invalidate(getProcessKey(application, applicationProcess));
+    }
+
+    /**
+     * Ask the server whether an application process exists, remembering the answer
+     */
+    private boolean lookupProcess(String application, String applicationProcess) throws AbortException {
+        String key = getProcessKey(application, applicationProcess);
+
+        try {
+            appClient.getApplicationProcess(application, applicationProcess);
+        }
+        catch (IOException ex) {
+            existingProcesses.invalidate(key);
+            return false;
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while checking the UCD server for the application process : "
+                    + ex.getMessage());
+        }
+
+        existingProcesses.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    private String getProcessKey(String application, String applicationProcess) {
+        return clientKey + "|" + application + "|" + applicationProcess;
+    }
+
+    /**
+     * Find the required request properties of an application process which the supplied properties
+     * leave unfilled. Only the names of the supplied properties and whether their values are blank
+     * affect the answer, so it is shared by deployments of the same process supplying the same
+     * properties. A failed check forgets that the process exists.
+     *
+     * @param application The name of the application
+     * @param applicationProcess The name of the application process
+     * @param snapshot The snapshot being deployed, or an empty string
+     * @param requestProperties The request properties supplied with the deployment
+     * @return The names of the unfilled properties
+     * @throws IOException
+     * @throws JSONException
+     */
+    public List<String> getUnfilledRequestProperties(
+        String application,
+        String applicationProcess,
+        String snapshot,
+        Map<String, String> requestProperties)
+    throws IOException, JSONException {
+        // a blank value leaves a required property unfilled just like a missing one
+        Set<String> supplied = new TreeSet<String>();
+        for (Map.Entry<String, String> property : requestProperties.entrySet()) {
+            boolean blank = property.getValue() == null || property.getValue().trim().isEmpty();
+            supplied.add(property.getKey() + (blank ? "=" : "=*"));
+        }
+        String key = getProcessKey(application, applicationProcess) + "|" + snapshot + "|" + supplied;
+        List<String> props = unfilledRequestProperties.get(key);
+
+        if (props == null) {
+            JSONArray unfilledProps;
+            try {
+                unfilledProps = appClient.checkUnfilledApplicationProcessRequestProperties(application,
+                        applicationProcess, snapshot, requestProperties);
+            }
+            catch (IOException ex) {
+                forgetProcess(application, applicationProcess);
+                throw ex;
+            }
+            props = new ArrayList<String>();
+            for (int i = 0; i < unfilledProps.length(); i++) {
+                props.add(unfilledProps.getJSONObject(i).getString("name"));
+            }
+            props = Collections.unmodifiableList(props);
+            unfilledRequestProperties.put(key, props);
+        }
+
+        return props;
+    }
+
     /**
      * Construct a JSON representation of an Application Process
      * to pass to the ApplictionClient
@@ -0,0 +1,244 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class streams the steps of a running application process request into the
+ * build log. Each call to report streams the workflow trace once and prints only
+ * the steps which started or finished since the previous call. Every step is
+ * reported as started and as finished at most once. Only the ids of running steps
+ * are kept, finished steps are told apart by the latest end date already reported.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class ProcessTraceReporter implements Serializable {
+    public static final Logger log = LoggerFactory.getLogger(ProcessTraceReporter.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private String requestId;
+    private String workflowTraceId;
+    private boolean disabled;
+    /* Ids of the steps reported as started which have not finished yet */
+    private Set<String> startedSteps = new HashSet<String>();
+    /* Latest end date of the steps reported as finished */
+    private long finishedUntil;
+    /* Ids of the finished steps which ended exactly at finishedUntil */
+    private Set<String> finishedAtMark = new HashSet<String>();
+    /* Ids of the steps reported as finished by older versions, dropped after the next report */
+    private Set<String> finishedSteps;
+
+    /* Latest end date and the steps ending at it found by the trace being read */
+    private transient long scanUntil;
+    private transient Set<String> scanAtMark;
+
+    public ProcessTraceReporter(String requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Print the steps of the request which changed state since the last report
+     *
+     * @param ucdUrl The url of the UCD server
+     * @param client The client used to query the UCD server
+     * @param listener The build listener to print to
+     */
+    public void report(URI ucdUrl, DefaultHttpClient client, TaskListener listener) {
+        if (disabled) {
+            return;
+        }
+
+        // reporters saved by older versions only remembered the last state of each step
+        if (startedSteps == null) {
+            startedSteps = new HashSet<String>();
+        }
+        if (finishedAtMark == null) {
+            finishedAtMark = new HashSet<String>();
+        }
+
+        try {
+            if (workflowTraceId == null) {
+                URI requestUri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("deploy")
+                        .path("applicationProcessRequest").path(requestId).build();
+                workflowTraceId = UCDeploySite.executeGet(client, requestUri, new JsonStreamReader.Parser<String>() {
+                    @Override
+                    public String parse(JsonStreamReader reader) throws IOException {
+                        return reader.readFields("workflowTraceId").get("workflowTraceId");
+                    }
+                });
+
+                if (workflowTraceId == null) {
+                    log.info("[UrbanCode Deploy] No workflow trace found for request '" + requestId + "'");
+                    disabled = true;
+                    return;
+                }
+            }
+
+            scanUntil = finishedUntil;
+            scanAtMark = new HashSet<String>(finishedAtMark);
+
+            URI traceUri = UriBuilder.fromPath(ucdUrl.toString()).path("rest").path("workflow")
+                    .path(workflowTraceId).build();
+            List<String> lines = UCDeploySite.executeGet(client, traceUri,
+                    new JsonStreamReader.Parser<List<String>>() {
+                @Override
+                public List<String> parse(JsonStreamReader reader) throws IOException {
+                    List<String> lines = new ArrayList<String>();
+                    reportStep(reader, lines);
+                    return lines;
+                }
+            });
+
+            finishedUntil = scanUntil;
+            finishedAtMark = scanAtMark;
+            // every step finished so far ended before the new mark or is kept at it
+            finishedSteps = null;
+
+            for (String line : lines) {
+                listener.getLogger().println(line);
+            }
+        }
+        catch (Exception ex) {
+            // progress is informational only, never fail the deployment because of it
+            listener.getLogger().println("[Warning] Unable to show deployment progress: " + ex.getMessage());
+            disabled = true;
+        }
+    }
+
+    /**
+     * Read a single trace node and its children, adding a line for each step which
+     * started or finished since the last report. A node's own line comes before the
+     * lines of its children, wherever its fields appear in the response.
+     *
+     * @param reader The reader positioned at the trace node
+     * @param lines Receives the lines to print
+     * @throws IOException
+     */
+    private void reportStep(JsonStreamReader reader, List<String> lines) throws IOException {
+        String id = null;
+        String name = null;
+        String state = null;
+        String result = "";
+        long startDate = 0;
+        long endDate = 0;
+        List<String> childLines = new ArrayList<String>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            JsonStreamReader.Token token = reader.peek();
+
+            if (field.equals("children") && token == JsonStreamReader.Token.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonStreamReader.Token.BEGIN_OBJECT) {
+                        reportStep(reader, childLines);
+                    }
+                    else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            }
+            else if (token == JsonStreamReader.Token.BEGIN_ARRAY || token == JsonStreamReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+            }
+            else if (field.equals("id")) {
+                id = reader.nextString();
+            }
+            else if (field.equals("name")) {
+                name = reader.nextString();
+            }
+            else if (field.equals("state")) {
+                state = reader.nextString();
+            }
+            else if (field.equals("result")) {
+                String value = reader.nextString();
+                result = value != null ? value : "";
+            }
+            else if (field.equals("startDate")) {
+                startDate = parseDate(reader.nextString());
+            }
+            else if (field.equals("endDate")) {
+                endDate = parseDate(reader.nextString());
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id != null && name != null && state != null && !state.isEmpty()) {
+            if (endDate > 0) {
+                if (isNewlyFinished(id, endDate)) {
+                    lines.add("[UCD] Finished step '" + name + "' with result " + result
+                            + " in " + ((endDate - startDate) / 1000) + " seconds");
+                }
+                if (endDate > scanUntil) {
+                    scanUntil = endDate;
+                    scanAtMark.clear();
+                }
+                if (endDate == scanUntil) {
+                    scanAtMark.add(id);
+                }
+            }
+            else if (startDate > 0 && startedSteps.add(id)) {
+                lines.add("[UCD] Started step '" + name + "'");
+            }
+        }
+
+        lines.addAll(childLines);
+    }
+
+    /**
+     * Check whether a finished step was not reported as finished yet. A step is new when it
+     * was seen running, or when it ended after the steps reported so far.
+     *
+     * @param id The id of the step
+     * @param endDate The end date of the step
+     * @return Whether the step should be reported as finished
+     */
+    private boolean isNewlyFinished(String id, long endDate) {
+        if (startedSteps.remove(id)) {
+            return true;
+        }
+        if (finishedSteps != null && finishedSteps.contains(id)) {
+            return false;
+        }
+        return endDate > finishedUntil || (endDate == finishedUntil && !finishedAtMark.contains(id));
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared thread pool used to run independent UCD REST calls concurrently, and the
+ * blocking UCD work of asynchronous steps, which must stay off the Jenkins timer
+ *
+ */
+public class RequestPool {
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "UrbanCode Deploy request " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private RequestPool() {
+    }
+
+    /**
+     * Run a single task in the background
+     *
+     * @param task The task to run
+     * @return The future result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Run a single task in the background
+     *
+     * @param task The task to run
+     * @return The future completion of the task
+     */
+    public static Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Run tasks concurrently, never running more than maxConcurrency at once. All tasks
+     * are finished before returning, after which the first failure is thrown.
+     *
+     * @param tasks The tasks to run
+     * @param maxConcurrency The maximum number of tasks to run at the same time
+     * @return The task results in the same order as the tasks
+     * @throws Exception The failure of the first task which failed
+     */
+    public static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks, int maxConcurrency) throws Exception {
+        final List<T> results = new ArrayList<T>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            results.add(null);
+        }
+
+        final Exception[] failures = new Exception[tasks.size()];
+        final AtomicInteger next = new AtomicInteger();
+        int workerCount = Math.max(1, Math.min(maxConcurrency, tasks.size()));
+        List<Future<?>> workers = new ArrayList<Future<?>>(workerCount);
+
+        for (int w = 0; w < workerCount; w++) {
+            workers.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < tasks.size()) {
+                        try {
+                            results.set(i, tasks.get(i).call());
+                        }
+                        catch (Exception ex) {
+                            failures[i] = ex;
+                        }
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException ex) {
+            // stop handing out remaining tasks
+            next.set(tasks.size());
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+            throw ex;
+        }
+        catch (ExecutionException ex) {
+            throw new Exception(ex.getCause());
+        }
+
+        for (Exception failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        return results;
+    }
+}
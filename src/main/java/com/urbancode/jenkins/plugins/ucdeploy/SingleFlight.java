@@ -0,0 +1,86 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent identical reads share one call. While a lookup for a key is
+ * running, other callers asking for the same key wait for it and receive the
+ * same result or failure instead of sending their own request. Nothing is kept
+ * once the call finishes.
+ *
+ * @param <K> The type of the lookup key
+ * @param <V> The type of the lookup result
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Run the lookup for a key, or join the one already running
+     *
+     * @param key The lookup key, which must identify the server and user as well as the query
+     * @param lookup The lookup to run when none is running for the key
+     * @return The result of the lookup
+     * @throws Exception The failure of the lookup
+     */
+    public V execute(K key, Callable<V> lookup) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(lookup);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+
+        if (running != null) {
+            shared.incrementAndGet();
+            task = running;
+        }
+        else {
+            calls.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                inFlight.remove(key, task);
+            }
+        }
+
+        try {
+            return task.get();
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The number of lookups which were sent to the server
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return The number of lookups which joined a running call instead
+     */
+    public long getShared() {
+        return shared.get();
+    }
+}
@@ -0,0 +1,537 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Admission control for the requests sent to one UCD server from this JVM. Every
+ * client of a site shares one limiter, which caps the number of requests waiting
+ * on the server and the number of requests started per second. Waiting requests
+ * are admitted by priority: reads first, then other small calls, then uploads.
+ *
+ * The limiter is installed as a request interceptor, which takes a permit for the
+ * connection a request is sent on, and as a wrapper of the connection manager of the
+ * client. The permit is held until the connection is released, which the client does
+ * once the response body has been consumed or closed, or when the request fails or
+ * is aborted.
+ *
+ */
+public class SiteRequestLimiter implements HttpRequestInterceptor {
+
+    public static final int PRIORITY_READ = 0;
+    public static final int PRIORITY_WRITE = 1;
+    public static final int PRIORITY_UPLOAD = 2;
+
+    /* Requests with a body larger than this, or of unknown length, are treated as uploads */
+    private static final long UPLOAD_THRESHOLD = 64 * 1024;
+
+    /* Milliseconds after which a permit whose connection was never released is reclaimed */
+    private static final long LEASE_TIMEOUT = 10 * 60 * 1000;
+
+    /* Milliseconds between checks for reclaimable permits while waiting */
+    private static final long WAIT_SLICE = 1000;
+
+    private static final ConcurrentMap<String, SiteRequestLimiter> limiters =
+            new ConcurrentHashMap<String, SiteRequestLimiter>();
+
+    private final String site;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+    private final Map<Object, Lease> leases = new IdentityHashMap<Object, Lease>();
+
+    private int maxConcurrent;
+    private int maxPerSecond;
+    private double tokens;
+    private long lastRefill = System.currentTimeMillis();
+    private long sequence;
+
+    private long admitted;
+    private long delayed;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long reclaimed;
+
+    private SiteRequestLimiter(String site) {
+        this.site = site;
+    }
+
+    /**
+     * Get the limiter shared by all clients of a UCD server
+     *
+     * @param site The url of the UCD server
+     * @return The limiter of the server
+     */
+    public static SiteRequestLimiter forSite(String site) {
+        SiteRequestLimiter limiter = limiters.get(site);
+        if (limiter == null) {
+            SiteRequestLimiter created = new SiteRequestLimiter(site);
+            limiter = limiters.putIfAbsent(site, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    public static Map<String, SiteRequestLimiter> getLimiters() {
+        return limiters;
+    }
+
+    /**
+     * Update the limits of the server, keeping requests which already hold a permit
+     *
+     * @param maxConcurrent The maximum number of requests waiting on the server, or 0 for no limit
+     * @param maxPerSecond The maximum number of requests started per second, or 0 for no limit
+     */
+    public synchronized void setLimits(int maxConcurrent, int maxPerSecond) {
+        if (maxConcurrent != this.maxConcurrent || maxPerSecond != this.maxPerSecond) {
+            this.maxConcurrent = Math.max(0, maxConcurrent);
+            this.maxPerSecond = Math.max(0, maxPerSecond);
+            tokens = Math.min(tokens, this.maxPerSecond);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wrap the connection manager of a client, so permits are released with the connections they were taken for
+     *
+     * @param manager The connection manager of the client
+     * @return The manager to build the client with
+     */
+    public LimitedConnectionManager wrap(ClientConnectionManager manager) {
+        return new LimitedConnectionManager(this, manager);
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (connection == null) {
+            return;
+        }
+
+        synchronized (this) {
+            // retries and redirects sent on the same connection keep its permit
+            if (leases.containsKey(connection)) {
+                return;
+            }
+        }
+
+        try {
+            acquire(connection, getPriority(request));
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request to " + site);
+        }
+    }
+
+    /**
+     * Release the permit taken for a connection, if any
+     *
+     * @param connection The connection which went back to its manager
+     */
+    public synchronized void release(Object connection) {
+        if (leases.remove(connection) != null) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until a request of the given priority may be sent
+     *
+     * @param connection The connection the request is sent on
+     * @param priority One of the PRIORITY constants
+     * @throws InterruptedException
+     */
+    private synchronized void acquire(Object connection, int priority) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Waiter waiter = new Waiter(priority, sequence++);
+        waiters.add(waiter);
+
+        try {
+            while (true) {
+                reclaimExpiredLeases();
+
+                long delay = WAIT_SLICE;
+                if (waiters.peek() == waiter && hasCapacity(priority)) {
+                    delay = takeToken();
+                    if (delay == 0) {
+                        break;
+                    }
+                }
+                wait(Math.min(delay, WAIT_SLICE));
+            }
+        }
+        finally {
+            waiters.remove(waiter);
+            notifyAll();
+        }
+
+        long waited = System.currentTimeMillis() - start;
+        admitted++;
+        if (waited > 0) {
+            delayed++;
+            totalWaitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        }
+
+        leases.put(connection, new Lease(priority, System.currentTimeMillis()));
+    }
+
+    /**
+     * Uploads may not take every permit, so reads are never stuck behind them
+     */
+    private boolean hasCapacity(int priority) {
+        if (maxConcurrent <= 0) {
+            return true;
+        }
+        if (leases.size() >= maxConcurrent) {
+            return false;
+        }
+        if (priority == PRIORITY_UPLOAD && maxConcurrent > 1) {
+            int uploads = 0;
+            for (Lease lease : leases.values()) {
+                if (lease.priority == PRIORITY_UPLOAD) {
+                    uploads++;
+                }
+            }
+            return uploads < maxConcurrent - Math.max(1, maxConcurrent / 4);
+        }
+        return true;
+    }
+
+    /**
+     * Take a token from the rate limit bucket
+     *
+     * @return 0 if a token was taken, otherwise the milliseconds until one is available
+     */
+    private long takeToken() {
+        if (maxPerSecond <= 0) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        tokens = Math.min(maxPerSecond, tokens + (now - lastRefill) * maxPerSecond / 1000.0);
+        lastRefill = now;
+
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / maxPerSecond));
+    }
+
+    private void reclaimExpiredLeases() {
+        long expired = System.currentTimeMillis() - LEASE_TIMEOUT;
+        for (Iterator<Lease> it = leases.values().iterator(); it.hasNext();) {
+            if (it.next().acquired < expired) {
+                it.remove();
+                reclaimed++;
+            }
+        }
+    }
+
+    private static int getPriority(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && (entity.getContentLength() < 0 || entity.getContentLength() > UPLOAD_THRESHOLD)) {
+                return PRIORITY_UPLOAD;
+            }
+        }
+
+        String method = request.getRequestLine().getMethod();
+        if ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)) {
+            return PRIORITY_READ;
+        }
+        return PRIORITY_WRITE;
+    }
+
+    /**
+     * Get the current queue depth and the wait times of the server
+     *
+     * @return The metrics as a JSON object
+     * @throws JSONException
+     */
+    public synchronized JSONObject getMetrics() throws JSONException {
+        JSONObject metrics = new JSONObject();
+        metrics.put("maxConcurrentRequests", maxConcurrent);
+        metrics.put("maxRequestsPerSecond", maxPerSecond);
+        metrics.put("activeRequests", leases.size());
+        metrics.put("queueDepth", waiters.size());
+        metrics.put("admittedRequests", admitted);
+        metrics.put("delayedRequests", delayed);
+        metrics.put("totalWaitMillis", totalWaitMillis);
+        metrics.put("maxWaitMillis", maxWaitMillis);
+        metrics.put("averageWaitMillis", admitted > 0 ? totalWaitMillis / admitted : 0);
+        metrics.put("reclaimedPermits", reclaimed);
+        return metrics;
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final int priority;
+        private final long sequence;
+
+        private Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class Lease {
+        private final int priority;
+        private final long acquired;
+
+        private Lease(int priority, long acquired) {
+            this.priority = priority;
+            this.acquired = acquired;
+        }
+    }
+
+    /**
+     * Notified when a connection handed out by a LimitedConnectionManager is released or aborted
+     */
+    public interface ReleaseListener {
+
+        /**
+         * @param connection The connection which was released, as set in the context of its requests
+         */
+        void connectionReleased(ManagedClientConnection connection);
+    }
+
+    /**
+     * Connection manager which hands connections out and back through another manager,
+     * releasing the permit of each connection as it is returned. Pooled connections go
+     * back to the manager which created them, not to this one, so each connection is
+     * handed out behind a proxy which notices when it is released or aborted.
+     * Connections still leased when the manager shuts down release their permits as well.
+     */
+    public static class LimitedConnectionManager implements ClientConnectionManager {
+        private final SiteRequestLimiter limiter;
+        private final ClientConnectionManager delegate;
+        private final Set<ManagedClientConnection> leased =
+                Collections.newSetFromMap(new IdentityHashMap<ManagedClientConnection, Boolean>());
+        private final List<ReleaseListener> listeners = new CopyOnWriteArrayList<ReleaseListener>();
+
+        private LimitedConnectionManager(SiteRequestLimiter limiter, ClientConnectionManager delegate) {
+            this.limiter = limiter;
+            this.delegate = delegate;
+        }
+
+        /**
+         * Notify a listener of every connection released after its permit
+         *
+         * @param listener The listener to add
+         */
+        public void addReleaseListener(ReleaseListener listener) {
+            listeners.add(listener);
+        }
+
+        /**
+         * @return The manager which owns the connections
+         */
+        public ClientConnectionManager getDelegate() {
+            return delegate;
+        }
+
+        @Override
+        public SchemeRegistry getSchemeRegistry() {
+            return delegate.getSchemeRegistry();
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = delegate.requestConnection(route, state);
+
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection connection = track(request.getConnection(timeout, unit));
+                    synchronized (leased) {
+                        leased.add(connection);
+                    }
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit unit) {
+            ReleaseTracker tracker = getTracker(connection);
+            if (tracker == null) {
+                delegate.releaseConnection(connection, validDuration, unit);
+                return;
+            }
+            try {
+                delegate.releaseConnection(tracker.connection, validDuration, unit);
+            }
+            finally {
+                tracker.released(connection);
+            }
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            delegate.closeExpiredConnections();
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit unit) {
+            delegate.closeIdleConnections(idletime, unit);
+        }
+
+        @Override
+        public void shutdown() {
+            List<ManagedClientConnection> remaining;
+            synchronized (leased) {
+                remaining = new ArrayList<ManagedClientConnection>(leased);
+            }
+            try {
+                delegate.shutdown();
+            }
+            finally {
+                for (ManagedClientConnection connection : remaining) {
+                    ReleaseTracker tracker = getTracker(connection);
+                    if (tracker != null) {
+                        tracker.released(connection);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Wrap a connection of the delegate, so releasing or aborting it releases its permit
+         */
+        private ManagedClientConnection track(ManagedClientConnection connection) {
+            Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+            interfaces.add(ManagedClientConnection.class);
+            for (Class<?> type = connection.getClass(); type != null; type = type.getSuperclass()) {
+                for (Class<?> implemented : type.getInterfaces()) {
+                    if (Modifier.isPublic(implemented.getModifiers())) {
+                        interfaces.add(implemented);
+                    }
+                }
+            }
+
+            return (ManagedClientConnection) Proxy.newProxyInstance(connection.getClass().getClassLoader(),
+                    interfaces.toArray(new Class<?>[interfaces.size()]), new ReleaseTracker(connection));
+        }
+
+        private static ReleaseTracker getTracker(ManagedClientConnection connection) {
+            if (Proxy.isProxyClass(connection.getClass())) {
+                InvocationHandler handler = Proxy.getInvocationHandler(connection);
+                if (handler instanceof ReleaseTracker) {
+                    return (ReleaseTracker) handler;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Forwards every call to a connection of the delegate, releasing the permit of the
+         * connection once it has been released or aborted
+         */
+        private class ReleaseTracker implements InvocationHandler {
+            private final ManagedClientConnection connection;
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            private ReleaseTracker(ManagedClientConnection connection) {
+                this.connection = connection;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("equals") && args != null && args.length == 1) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode") && args == null) {
+                    return System.identityHashCode(proxy);
+                }
+
+                try {
+                    return method.invoke(connection, args);
+                }
+                catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+                finally {
+                    if ((method.getName().equals("releaseConnection") || method.getName().equals("abortConnection"))
+                            && args == null) {
+                        released((ManagedClientConnection) proxy);
+                    }
+                }
+            }
+
+            private void released(ManagedClientConnection proxy) {
+                if (!released.compareAndSet(false, true)) {
+                    return;
+                }
+                synchronized (leased) {
+                    leased.remove(proxy);
+                }
+                try {
+                    limiter.release(proxy);
+                }
+                finally {
+                    for (ReleaseListener listener : listeners) {
+                        listener.connectionReleased(proxy);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Latency, size and error counts of the requests sent to one UCD server from this JVM,
+ * grouped by operation. An operation is the request method and the path below the
+ * server url, with ids replaced by {id}, such as "PUT cli/version/versionProperties".
+ *
+ * Every client of a site shares one instance, installed as a request and response
+ * interceptor after the request limiter, so time spent waiting for a permit is not
+ * counted as server latency. Retries are the repeated attempts of a request made by
+ * the client retry handler. The exchange of a request is kept in its context and by
+ * its connection, so a request which fails without a response is counted, and its
+ * flight recorder event committed, when the request is retried or its connection is
+ * released or aborted.
+ *
+ * Requests sent from agents, such as artifact uploads, are counted in the agent JVM.
+ * Each completed request is also sent to the flight recorder as a REST call event.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by ThreadSafeClientConnManager
+public class SiteRequestMetrics implements HttpRequestInterceptor, HttpResponseInterceptor,
+        SiteRequestLimiter.ReleaseListener {
+
+    /* Upper bounds in milliseconds of the latency histogram buckets, the last bucket has no bound */
+    private static final long[] LATENCY_BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    /* Operations tracked per site, later operations are counted together */
+    private static final int MAX_OPERATIONS = 200;
+
+    private static final String OTHER_OPERATION = "other";
+
+    /* Context attribute marking a request which has already been attempted */
+    private static final String ATTEMPTED = SiteRequestMetrics.class.getName() + ".attempted";
+
+    /* Context attribute holding the exchange of the request being sent */
+    private static final String EXCHANGE = SiteRequestMetrics.class.getName() + ".exchange";
+
+    private static final ConcurrentMap<String, SiteRequestMetrics> siteMetrics =
+            new ConcurrentHashMap<String, SiteRequestMetrics>();
+
+    private final String site;
+    private final String basePath;
+    /* Exchanges without a response yet, by the connection they were sent on */
+    private final Map<Object, Exchange> openExchanges = new IdentityHashMap<Object, Exchange>();
+    private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+    private final Set<ClientConnectionManager> connectionManagers =
+            Collections.newSetFromMap(new WeakHashMap<ClientConnectionManager, Boolean>());
+
+    private SiteRequestMetrics(String site) {
+        this.site = site;
+        String path = "";
+        try {
+            path = URI.create(site).getPath();
+        }
+        catch (IllegalArgumentException ex) {
+            // operations keep the full path
+        }
+        basePath = path == null ? "" : path.replaceAll("/+$", "");
+    }
+
+    /**
+     * Get the metrics shared by all clients of a UCD server
+     *
+     * @param site The url of the UCD server
+     * @return The metrics of the server
+     */
+    public static SiteRequestMetrics forSite(String site) {
+        SiteRequestMetrics metrics = siteMetrics.get(site);
+        if (metrics == null) {
+            SiteRequestMetrics created = new SiteRequestMetrics(site);
+            metrics = siteMetrics.putIfAbsent(site, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    public static Map<String, SiteRequestMetrics> getSiteMetrics() {
+        return siteMetrics;
+    }
+
+    /**
+     * Include the connection pool of a client in the metrics, for as long as the client is in use
+     *
+     * @param manager The connection manager of the client
+     */
+    public void addConnectionManager(ClientConnectionManager manager) {
+        synchronized (connectionManagers) {
+            connectionManagers.add(manager);
+        }
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        if (context == null) {
+            return;
+        }
+
+        // the previous attempt of a retried request failed before its response
+        Exchange failed = (Exchange) context.getAttribute(EXCHANGE);
+        if (failed != null) {
+            fail(failed);
+        }
+
+        boolean retry = context.getAttribute(ATTEMPTED) != null;
+        context.setAttribute(ATTEMPTED, Boolean.TRUE);
+
+        long requestBytes = 0;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                requestBytes = entity.getContentLength();
+            }
+        }
+
+        String operation = getOperation(request);
+        OperationStats stats = getStats(operation);
+        stats.recordRequest(retry, requestBytes);
+
+        Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        Exchange exchange = new Exchange(stats, operation, requestBytes, System.currentTimeMillis(),
+                FlightRecorderEvents.begin(FlightRecorderEvents.Type.REST_CALL), connection);
+        context.setAttribute(EXCHANGE, exchange);
+        if (connection != null) {
+            synchronized (openExchanges) {
+                openExchanges.put(connection, exchange);
+            }
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        Exchange exchange = context != null ? (Exchange) context.getAttribute(EXCHANGE) : null;
+        if (exchange == null) {
+            return;
+        }
+        context.removeAttribute(EXCHANGE);
+        if (!close(exchange)) {
+            return;
+        }
+
+        OperationStats stats = exchange.stats;
+        stats.recordResponse(response.getStatusLine().getStatusCode(), System.currentTimeMillis() - exchange.started);
+
+        HttpEntity entity = response.getEntity();
+        long responseBytes = 0;
+        if (entity != null) {
+            if (entity.getContentLength() >= 0) {
+                responseBytes = entity.getContentLength();
+                stats.recordResponseBytes(responseBytes);
+            }
+            else {
+                response.setEntity(new CountedEntity(entity, stats));
+            }
+        }
+
+        exchange.event.commit(site, exchange.operation, null, exchange.requestBytes + responseBytes);
+    }
+
+    /**
+     * Count the request sent on a connection as failed if it never got a response
+     *
+     * @param connection The connection which was released or aborted
+     */
+    @Override
+    public void connectionReleased(ManagedClientConnection connection) {
+        Exchange exchange;
+        synchronized (openExchanges) {
+            exchange = openExchanges.get(connection);
+        }
+        if (exchange != null) {
+            fail(exchange);
+        }
+    }
+
+    private void fail(Exchange exchange) {
+        if (close(exchange)) {
+            exchange.stats.recordFailure();
+            exchange.event.commit(site, exchange.operation, null, exchange.requestBytes);
+        }
+    }
+
+    /**
+     * Close an exchange, which happens once, with either its response or its failure
+     *
+     * @return Whether the exchange was still open
+     */
+    private boolean close(Exchange exchange) {
+        if (!exchange.closed.compareAndSet(false, true)) {
+            return false;
+        }
+        if (exchange.connection != null) {
+            synchronized (openExchanges) {
+                if (openExchanges.get(exchange.connection) == exchange) {
+                    openExchanges.remove(exchange.connection);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the statistics of every operation and the connection pools of the server
+     *
+     * @return The metrics as a JSON object
+     * @throws JSONException
+     */
+    public JSONObject getMetrics() throws JSONException {
+        JSONObject operationMetrics = new JSONObject();
+        for (Map.Entry<String, OperationStats> entry : new TreeMap<String, OperationStats>(operations).entrySet()) {
+            operationMetrics.put(entry.getKey(), entry.getValue().getMetrics());
+        }
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("operations", operationMetrics);
+        metrics.put("connectionPools", getPoolMetrics());
+        return metrics;
+    }
+
+    private JSONArray getPoolMetrics() throws JSONException {
+        List<ClientConnectionManager> managers;
+        synchronized (connectionManagers) {
+            managers = new ArrayList<ClientConnectionManager>(connectionManagers);
+        }
+
+        JSONArray pools = new JSONArray();
+        for (ClientConnectionManager manager : managers) {
+            JSONObject pool = new JSONObject();
+            if (manager instanceof PoolingClientConnectionManager) {
+                PoolStats total = ((PoolingClientConnectionManager) manager).getTotalStats();
+                pool.put("leased", total.getLeased());
+                pool.put("available", total.getAvailable());
+                pool.put("pending", total.getPending());
+                pool.put("max", total.getMax());
+            }
+            else if (manager instanceof ThreadSafeClientConnManager) {
+                ThreadSafeClientConnManager threadSafe = (ThreadSafeClientConnManager) manager;
+                pool.put("open", threadSafe.getConnectionsInPool());
+                pool.put("max", threadSafe.getMaxTotal());
+            }
+            else {
+                continue;
+            }
+            pools.put(pool);
+        }
+        return pools;
+    }
+
+    private OperationStats getStats(String operation) {
+        OperationStats stats = operations.get(operation);
+        if (stats == null) {
+            if (operations.size() >= MAX_OPERATIONS) {
+                operation = OTHER_OPERATION;
+            }
+            OperationStats created = new OperationStats();
+            stats = operations.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Name the operation of a request by its method and path, with ids left out
+     */
+    private String getOperation(HttpRequest request) {
+        String path = request.getRequestLine().getUri();
+        try {
+            String uriPath = URI.create(path).getRawPath();
+            if (uriPath != null) {
+                path = uriPath;
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+        }
+
+        if (!basePath.isEmpty() && path.startsWith(basePath)) {
+            path = path.substring(basePath.length());
+        }
+
+        StringBuilder operation = new StringBuilder(request.getRequestLine().getMethod()).append(' ');
+        boolean first = true;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (!first) {
+                operation.append('/');
+            }
+            first = false;
+            operation.append(isId(segment) ? "{id}" : segment);
+        }
+        return operation.toString();
+    }
+
+    private static boolean isId(String segment) {
+        return segment.matches("[0-9]+")
+                || segment.matches("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}")
+                || segment.matches("[0-9a-fA-F-]{32,}");
+    }
+
+    private static class Exchange {
+        private final OperationStats stats;
+        private final String operation;
+        private final long requestBytes;
+        private final long started;
+        private final FlightRecorderEvents.Event event;
+        private final Object connection;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Exchange(OperationStats stats, String operation, long requestBytes, long started,
+                FlightRecorderEvents.Event event, Object connection) {
+            this.stats = stats;
+            this.operation = operation;
+            this.requestBytes = requestBytes;
+            this.started = started;
+            this.event = event;
+            this.connection = connection;
+        }
+    }
+
+    private static class OperationStats {
+        private final long[] histogram = new long[LATENCY_BOUNDS.length + 1];
+        private final Map<Integer, Long> statusCodes = new TreeMap<Integer, Long>();
+        private long requests;
+        private long retries;
+        private long responses;
+        private long errors;
+        private long failures;
+        private long totalMillis;
+        private long maxMillis;
+        private long requestBytes;
+        private long responseBytes;
+
+        private synchronized void recordRequest(boolean retry, long bytes) {
+            requests++;
+            if (retry) {
+                retries++;
+            }
+            requestBytes += bytes;
+        }
+
+        private synchronized void recordResponse(int status, long millis) {
+            responses++;
+            if (status >= 400) {
+                errors++;
+            }
+            Long count = statusCodes.get(status);
+            statusCodes.put(status, count == null ? 1 : count + 1);
+
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS.length && millis > LATENCY_BOUNDS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        private synchronized void recordFailure() {
+            failures++;
+        }
+
+        private synchronized void recordResponseBytes(long bytes) {
+            responseBytes += bytes;
+        }
+
+        private synchronized JSONObject getMetrics() throws JSONException {
+            JSONObject latency = new JSONObject();
+            for (int i = 0; i < histogram.length; i++) {
+                latency.put(i < LATENCY_BOUNDS.length ? "<=" + LATENCY_BOUNDS[i] : ">" + LATENCY_BOUNDS[i - 1],
+                        histogram[i]);
+            }
+
+            JSONObject statuses = new JSONObject();
+            for (Map.Entry<Integer, Long> entry : statusCodes.entrySet()) {
+                statuses.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+
+            JSONObject metrics = new JSONObject();
+            metrics.put("requests", requests);
+            metrics.put("retries", retries);
+            metrics.put("errors", errors);
+            metrics.put("failedWithoutResponse", failures);
+            metrics.put("errorRate", requests > 0 ? (double) (errors + failures) / requests : 0);
+            metrics.put("statusCodes", statuses);
+            metrics.put("averageMillis", responses > 0 ? totalMillis / responses : 0);
+            metrics.put("maxMillis", maxMillis);
+            metrics.put("p50Millis", getPercentile(0.5));
+            metrics.put("p95Millis", getPercentile(0.95));
+            metrics.put("p99Millis", getPercentile(0.99));
+            metrics.put("latencyHistogram", latency);
+            metrics.put("requestBytes", requestBytes);
+            metrics.put("responseBytes", responseBytes);
+            return metrics;
+        }
+
+        /**
+         * Estimate a percentile as the upper bound of the bucket it falls in
+         */
+        private long getPercentile(double fraction) {
+            if (responses == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(responses * fraction);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return Math.min(LATENCY_BOUNDS[i], maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+    }
+
+    /**
+     * Response entity of unknown length which counts its bytes as they are read
+     */
+    private static class CountedEntity extends HttpEntityWrapper {
+        private final OperationStats stats;
+
+        private CountedEntity(HttpEntity entity, OperationStats stats) {
+            super(entity);
+            this.stats = stats;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        stats.recordResponseBytes(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int count = super.read(buffer, offset, length);
+                    if (count > 0) {
+                        stats.recordResponseBytes(count);
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+/**
+ * Decides who completes the context of an asynchronous step when its background work
+ * finishes while the step is being stopped. Whoever claims the completion first completes
+ * the context, exactly once: either the background work, which may then finish the
+ * deployment before completing it, or the stop request.
+ *
+ */
+class StepCompletion {
+
+    private enum Owner {
+        NONE, WORK, STOP
+    }
+
+    private Owner owner = Owner.NONE;
+    private boolean stopped;
+
+    /**
+     * Claim the completion for the background work of the step. The work may call this again
+     * once it holds the claim, such as when a failure follows a successful claim.
+     *
+     * @return Whether the work completes the step, false when the step was stopped first
+     */
+    synchronized boolean claim() {
+        if (owner == Owner.NONE) {
+            owner = Owner.WORK;
+        }
+        return owner == Owner.WORK;
+    }
+
+    /**
+     * Stop the step, claiming its completion unless the background work already did
+     *
+     * @return Whether the stop request completes the step, false when the work completes it
+     */
+    synchronized boolean stop() {
+        stopped = true;
+        if (owner == Owner.NONE) {
+            owner = Owner.STOP;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the step was asked to stop, after which no more work is scheduled
+     */
+    synchronized boolean isStopped() {
+        return stopped;
+    }
+}
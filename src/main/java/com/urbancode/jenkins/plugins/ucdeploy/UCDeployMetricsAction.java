@@ -0,0 +1,131 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * HTTP endpoint reporting how the plugin uses each UCD server from this Jenkins
+ * controller: request queues, latency and errors of each operation, connection
+ * pools and caches. Only administrators may read it.
+ *
+ * The endpoint is reached at ${JENKINS_URL}ucd-metrics/
+ * Wire logging of a server is changed by posting to ${JENKINS_URL}ucd-metrics/wireLog
+ *
+ */
+@Extension
+public class UCDeployMetricsAction implements RootAction {
+
+    public static final String URL_NAME = "ucd-metrics";
+
+    /**
+     * Write the metrics of every UCD server as JSON
+     *
+     * @param rsp
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void doIndex(StaplerResponse rsp) throws IOException, JSONException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        JSONObject sites = new JSONObject();
+        for (Map.Entry<String, SiteRequestLimiter> entry : SiteRequestLimiter.getLimiters().entrySet()) {
+            JSONObject site = new JSONObject();
+            site.put("requestLimiter", entry.getValue().getMetrics());
+            WireLogger wireLogger = WireLogger.getLoggers().get(entry.getKey());
+            if (wireLogger != null) {
+                site.put("wireLog", wireLogger.getMetrics());
+            }
+            SiteRequestMetrics requestMetrics = SiteRequestMetrics.getSiteMetrics().get(entry.getKey());
+            if (requestMetrics != null) {
+                site.put("requests", requestMetrics.getMetrics());
+            }
+            sites.put(entry.getKey(), site);
+        }
+
+        JSONObject caches = new JSONObject();
+        caches.put("applicationIds", DeployHelper.getApplicationIdCache().getMetrics());
+        caches.put("applicationComponents", ComponentHelper.getApplicationComponentCache().getMetrics());
+        caches.put("applicationProcesses", ProcessHelper.getProcessCache().getMetrics());
+        caches.put("requestProperties", ProcessHelper.getRequestPropertyCache().getMetrics());
+        caches.put("resolvedVersions", VersionResolver.getResolvedVersionCache().getMetrics());
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("sites", sites);
+        metrics.put("caches", caches);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(metrics.toString());
+    }
+
+    /**
+     * Override the wire logging level of a UCD server until Jenkins restarts
+     *
+     * @param site The url of the UCD server, as configured
+     * @param level OFF, BASIC or BODY, or empty to go back to the configured level
+     * @param rsp
+     * @throws IOException
+     * @throws JSONException
+     */
+    @RequirePOST
+    public void doWireLog(@QueryParameter String site, @QueryParameter String level, StaplerResponse rsp)
+    throws IOException, JSONException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        WireLogger wireLogger = site != null ? WireLogger.getLoggers().get(site) : null;
+        if (wireLogger == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No IBM UrbanCode Deploy site is in use at '" + site + "'");
+            return;
+        }
+
+        if (level == null || level.trim().isEmpty()) {
+            wireLogger.setOverride(null);
+        }
+        else {
+            try {
+                wireLogger.setOverride(WireLogger.Level.valueOf(level.trim().toUpperCase()));
+            }
+            catch (IllegalArgumentException ex) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The wire logging level must be OFF, BASIC or BODY");
+                return;
+            }
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(wireLogger.getMetrics().toString());
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+}
@@ -31,6 +31,11 @@ import jenkins.tasks.SimpleBuildStep;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import net.sf.json.JSONObject;
 
@@ -50,6 +55,7 @@ import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.DeployBlock;
 import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.CreateSnapshotBlock;
 import com.urbancode.jenkins.plugins.ucdeploy.VersionHelper;
 import com.urbancode.jenkins.plugins.ucdeploy.VersionHelper.VersionBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.PhaseTimings.Phase;
 import com.urbancode.jenkins.plugins.ucdeploy.UCDeployPublisher.UserBlock;
 
 public class UCDeployPublisher extends Builder implements SimpleBuildStep {
@@ -335,6 +341,22 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return false;
     }
 
+    public Boolean getWaitForImport() {
+        if (getDelivery() != null && getDelivery() instanceof Pull) {
+            return ((Pull)getDelivery()).getWaitForImport();
+        }
+
+        return false;
+    }
+
+    public Integer getImportTimeout() {
+        if (getDelivery() != null && getDelivery() instanceof Pull) {
+            return ((Pull)getDelivery()).getImportTimeout();
+        }
+
+        return Pull.DEFAULT_IMPORT_TIMEOUT;
+    }
+
     public DeployBlock getDeploy() {
         return deploy;
     }
@@ -367,6 +389,30 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return deployEnv;
     }
 
+    public Integer getMaxParallelEnvs() {
+        if (deploy != null) {
+            return deploy.getMaxParallelEnvs();
+        }
+
+        return 0;
+    }
+
+    public Boolean getFailFast() {
+        if (deploy != null) {
+            return deploy.getFailFast();
+        }
+
+        return false;
+    }
+
+    public Boolean getCoalesce() {
+        if (deploy != null) {
+            return deploy.getCoalesce();
+        }
+
+        return false;
+    }
+
     public String getDeployProc() {
         String deployProc = "";
 
@@ -385,6 +431,22 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return false;
     }
 
+    public Boolean getUseCallback() {
+        if (deploy != null) {
+            return deploy.getUseCallback();
+        }
+
+        return false;
+    }
+
+    public Boolean getShowProgress() {
+        if (deploy != null) {
+            return deploy.getShowProgress();
+        }
+
+        return false;
+    }
+
     public CreateProcessBlock getCreateProcess() {
         return deploy.getCreateProcess();
     }
@@ -456,6 +518,15 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         }
     }    
 
+    public Boolean getMergeInventory() {
+        if (getCreateSnapshot() != null) {
+            return ((getCreateSnapshot()).getMergeInventory());
+        }
+        else {
+            return false;
+        }
+    }
+
     public String getDeployVersions() {
         String deployVersions = "";
 
@@ -503,17 +574,7 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
      * @return the matching UCDeploySite or null
      */
     public UCDeploySite getSite() {
-        UCDeploySite[] sites = GLOBALDESCRIPTOR.getSites();
-        if (siteName == null && sites.length > 0) {
-            // default
-            return sites[0];
-        }
-        for (UCDeploySite site : sites) {
-            if (site.getDisplayName().equals(siteName)) {
-                return site;
-            }
-        }
-        return null;
+        return GLOBALDESCRIPTOR.getSite(siteName);
     }
 
     /**
@@ -554,6 +615,55 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         }
 
         EnvVars envVars = build.getEnvironment(listener);
+        PhaseTimings timings = new PhaseTimings();
+
+        try {
+            publishAndDeploy(build, workspace, listener, udSite, udClient, envVars, timings);
+        }
+        catch (DeploymentCoalescer.SupersededException ex) {
+            // a newer build deploys instead, which is not a failure of this one
+            listener.getLogger().println(ex.getMessage());
+            build.setResult(Result.NOT_BUILT);
+            return;
+        }
+        finally {
+            timings.endRunning();
+            UCDeployTimingAction.record(build, timings);
+        }
+    }
+
+    /**
+     * Run the steps of the publisher, recording the time taken by each phase
+     */
+    private void publishAndDeploy(
+            Run<?, ?> build,
+            FilePath workspace,
+            TaskListener listener,
+            UCDeploySite udSite,
+            DefaultHttpClient udClient,
+            EnvVars envVars,
+            PhaseTimings timings)
+    throws AbortException, InterruptedException, IOException {
+        /* Validate every step against the server before changing anything */
+        List<Callable<String>> checks = new ArrayList<Callable<String>>();
+        Set<String> componentNames = new HashSet<String>();
+        if (componentChecked()) {
+            VersionHelper versionHelper = new VersionHelper(udSite.getUri(), udClient, listener, envVars);
+            checks.addAll(versionHelper.getPreflightChecks(getComponent()));
+            componentNames.addAll(versionHelper.getComponentNames(getComponent()));
+        }
+        if (deployChecked()) {
+            DeployHelper deployHelper = new DeployHelper(udSite.getUri(), udClient, listener, envVars, udSite.isSkipProps());
+            deployHelper.setWorkspace(workspace);
+            checks.addAll(deployHelper.getPreflightChecks(getDeploy(), componentNames));
+        }
+        timings.begin(Phase.PREFLIGHT);
+        try {
+            PreflightCheck.verify(checks, listener, UCDeploySite.getMaxConcurrentRequests(udClient));
+        }
+        finally {
+            timings.end(Phase.PREFLIGHT, checks.size(), 0);
+        }
 
         if (componentChecked() ) {
             String buildUrl = Hudson.getInstance().getRootUrl() + build.getUrl();
@@ -566,16 +676,21 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
                     envVars,
                     listener);
 
-            workspace.act(task);
+            timings.merge(workspace.act(task));
         }
 
         if (deployChecked()) {
             DeployHelper deployHelper = new DeployHelper(udSite.getUri(), udClient, listener, envVars, udSite.isSkipProps());
+            deployHelper.setWorkspace(workspace);
+            deployHelper.setTimings(timings);
 
             /* Throw AbortException so that Jenkins will mark job as faulty */
             try {
                 deployHelper.runDeployment(getDeploy());
             }
+            catch (DeploymentCoalescer.SupersededException ex) {
+                throw ex;
+            }
             catch (IOException ex) {
                 throw new AbortException("Deployment has failed due to IOException " + ex.getMessage());
             }
@@ -616,7 +731,7 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
      * Callable class that can be serialized and executed on a remote node
      *
      */
-    private static class PublishArtifactsCallable implements FileCallable<Boolean> {
+    private static class PublishArtifactsCallable implements FileCallable<PhaseTimings> {
         private static final long serialVersionUID = 1L;
         String buildUrl;
         String buildName;
@@ -653,7 +768,7 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         }
 
         @Override
-        public Boolean invoke(File workspace, VirtualChannel node) throws IOException, InterruptedException {
+        public PhaseTimings invoke(File workspace, VirtualChannel node) throws IOException, InterruptedException {
             DefaultHttpClient udClient;
 
             if (altUser != null) {
@@ -664,9 +779,12 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
             }
 
             VersionHelper versionHelper = new VersionHelper(udSite.getUri(), udClient, listener, envVars);
+            versionHelper.setWorkspace(new FilePath(workspace));
+            PhaseTimings timings = new PhaseTimings();
+            versionHelper.setTimings(timings);
             versionHelper.createVersion(component, "Jenkins Build " + buildName, buildUrl);
 
-            return true;
+            return timings;
         }
     }
 
@@ -12,19 +12,29 @@ import com.urbancode.ud.client.UDRestClient;
 import hudson.AbortException;
 import hudson.util.Secret;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.ws.rs.core.UriBuilder;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpEntity;
 import org.apache.http.util.EntityUtils;
+import org.codehaus.jettison.json.JSONException;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -56,10 +66,21 @@ public class UCDeploySite implements Serializable {
     public boolean skipProps;
 
     private boolean alwaysCreateNewClient;
+
+    private int maxConcurrentRequests;
+
+    private int maxRequestsPerSecond;
+
+    private String wireLogLevel;
+
+    private int wireLogSampling;
     
 
     public static DefaultHttpClient client;
 
+    /* Pooled connections allowed to a single UCD server from one client */
+    public static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+
     /**
      * Instantiates a new UrbanDeploy site.
      *
@@ -92,7 +113,7 @@ public class UCDeploySite implements Serializable {
         this.trustAllCerts = trustAllCerts;
         this.skipProps = skipProps;
         this.alwaysCreateNewClient = alwaysCreateNewClient;
-        client = UDRestClient.createHttpClient(user, password.getPlainText(), trustAllCerts);
+        client = createClient(url, user, password.getPlainText(), trustAllCerts);
     }
 
     /**
@@ -121,14 +142,155 @@ public class UCDeploySite implements Serializable {
         log.info("[UrbanCode Deploy] getClient() starts...");
         if (client == null || alwaysCreateNewClient == true) {
             log.info("Client was null or alwaysCreateNewClient == true");
-            client = UDRestClient.createHttpClient(user, password.getPlainText(), trustAllCerts);
+            client = createClient(url, user, password.getPlainText(), trustAllCerts);
         }
+        applyRequestLimits();
         log.info("[UrbanCode Deploy] getClient() end...");
         return client;
     }
 
     public DefaultHttpClient getTempClient(String tempUser, Secret tempPassword) {
-        return UDRestClient.createHttpClient(tempUser, tempPassword.getPlainText(), trustAllCerts);
+        applyRequestLimits();
+        return createClient(url, tempUser, tempPassword.getPlainText(), trustAllCerts);
+    }
+
+    /**
+     * Push the configured limits and wire logging to the limiter and logger shared by every client of this site
+     */
+    private void applyRequestLimits() {
+        if (url != null) {
+            SiteRequestLimiter.forSite(url).setLimits(maxConcurrentRequests, maxRequestsPerSecond);
+            WireLogger.forSite(url).configure(WireLogger.Level.valueOf(getWireLogLevel()), getWireLogSampling());
+        }
+    }
+
+    /**
+     * Create a client for the UCD server, allowing enough pooled connections for
+     * requests which are sent concurrently. Every request passes through the
+     * request limiter, wire logger and request metrics of the site. The limiter wraps
+     * the connection manager, so the client is rebuilt around the wrapped manager with
+     * the settings of the client created by the rest client library.
+     *
+     * @param url
+     * @param user
+     * @param password
+     * @param trustAllCerts
+     * @return The new client
+     */
+    private static DefaultHttpClient createClient(String url, String user, String password, boolean trustAllCerts) {
+        DefaultHttpClient httpClient = UDRestClient.createHttpClient(user, password, trustAllCerts);
+        ClientConnectionManager manager = httpClient.getConnectionManager();
+
+        if (manager instanceof PoolingClientConnectionManager) {
+            PoolingClientConnectionManager pool = (PoolingClientConnectionManager) manager;
+            if (pool.getDefaultMaxPerRoute() < MAX_CONNECTIONS_PER_ROUTE) {
+                pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+                pool.setMaxTotal(Math.max(pool.getMaxTotal(), MAX_CONNECTIONS_PER_ROUTE));
+            }
+        }
+        else if (manager instanceof ThreadSafeClientConnManager) {
+            ThreadSafeClientConnManager pool = (ThreadSafeClientConnManager) manager;
+            if (pool.getDefaultMaxPerRoute() < MAX_CONNECTIONS_PER_ROUTE) {
+                pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+                pool.setMaxTotal(Math.max(pool.getMaxTotal(), MAX_CONNECTIONS_PER_ROUTE));
+            }
+        }
+
+        if (url != null) {
+            SiteRequestLimiter limiter = SiteRequestLimiter.forSite(url);
+            SiteRequestLimiter.LimitedConnectionManager limitedManager = limiter.wrap(manager);
+            httpClient = copyClient(httpClient, limitedManager);
+            httpClient.addRequestInterceptor(limiter, 0);
+
+            WireLogger wireLogger = WireLogger.forSite(url);
+            httpClient.addRequestInterceptor(wireLogger);
+            httpClient.addResponseInterceptor(wireLogger);
+
+            SiteRequestMetrics metrics = SiteRequestMetrics.forSite(url);
+            metrics.addConnectionManager(manager);
+            limitedManager.addReleaseListener(metrics);
+            httpClient.addRequestInterceptor(metrics);
+            httpClient.addResponseInterceptor(metrics);
+        }
+
+        return httpClient;
+    }
+
+    /**
+     * Create a client using another connection manager, with the parameters, credentials,
+     * strategies and interceptors of an existing client
+     *
+     * @param source The client to copy
+     * @param manager The connection manager of the new client
+     * @return The new client
+     */
+    private static DefaultHttpClient copyClient(DefaultHttpClient source, ClientConnectionManager manager) {
+        DefaultHttpClient client = new DefaultHttpClient(manager, source.getParams());
+
+        client.setCredentialsProvider(source.getCredentialsProvider());
+        client.setCookieStore(source.getCookieStore());
+        client.setAuthSchemes(source.getAuthSchemes());
+        client.setCookieSpecs(source.getCookieSpecs());
+        client.setRoutePlanner(source.getRoutePlanner());
+        client.setHttpRequestRetryHandler(source.getHttpRequestRetryHandler());
+        client.setRedirectStrategy(source.getRedirectStrategy());
+        client.setTargetAuthenticationStrategy(source.getTargetAuthenticationStrategy());
+        client.setProxyAuthenticationStrategy(source.getProxyAuthenticationStrategy());
+        client.setKeepAliveStrategy(source.getConnectionKeepAliveStrategy());
+        client.setReuseStrategy(source.getConnectionReuseStrategy());
+        client.setUserTokenHandler(source.getUserTokenHandler());
+
+        // the source holds the default protocol interceptors as well as those added to it
+        client.clearRequestInterceptors();
+        client.clearResponseInterceptors();
+        for (int i = 0; i < source.getRequestInterceptorCount(); i++) {
+            client.addRequestInterceptor(source.getRequestInterceptor(i));
+        }
+        for (int i = 0; i < source.getResponseInterceptorCount(); i++) {
+            client.addResponseInterceptor(source.getResponseInterceptor(i));
+        }
+
+        return client;
+    }
+
+    /**
+     * Get the number of requests which may be sent through a client at the same time.
+     * Clients without a connection pool can only send one request at a time.
+     *
+     * @param client
+     * @return The maximum number of concurrent requests
+     */
+    public static int getMaxConcurrentRequests(DefaultHttpClient client) {
+        ClientConnectionManager manager = client.getConnectionManager();
+        if (manager instanceof SiteRequestLimiter.LimitedConnectionManager) {
+            manager = ((SiteRequestLimiter.LimitedConnectionManager) manager).getDelegate();
+        }
+
+        if (manager instanceof PoolingClientConnectionManager) {
+            return ((PoolingClientConnectionManager) manager).getDefaultMaxPerRoute();
+        }
+        else if (manager instanceof ThreadSafeClientConnManager) {
+            return ((ThreadSafeClientConnManager) manager).getDefaultMaxPerRoute();
+        }
+
+        return 1;
+    }
+
+    /**
+     * Identify the user a client authenticates as, so lookups made by different users
+     * are never shared. Clients without readable credentials only match themselves.
+     *
+     * @param client
+     * @return The user name of the client, or a name unique to the client
+     */
+    public static String getClientIdentity(DefaultHttpClient client) {
+        Credentials credentials = client.getCredentialsProvider().getCredentials(AuthScope.ANY);
+
+        if (credentials != null && credentials.getUserPrincipal() != null) {
+            return "user:" + credentials.getUserPrincipal().getName();
+        }
+
+        return "client:" + System.identityHashCode(client);
     }
 
     /**
@@ -290,6 +452,73 @@ public class UCDeploySite implements Serializable {
         this.alwaysCreateNewClient = alwaysCreateNewClient;
     }
 
+    /**
+     * Gets the maximum number of requests waiting on the server at once
+     *
+     * @return maxConcurrentRequests, 0 when unlimited
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Gets the maximum number of requests started per second
+     *
+     * @return maxRequestsPerSecond, 0 when unlimited
+     */
+    public int getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * Gets the level of REST requests written to the Jenkins log
+     *
+     * @return wireLogLevel, OFF when not set
+     */
+    public String getWireLogLevel() {
+        if (wireLogLevel != null) {
+            try {
+                return WireLogger.Level.valueOf(wireLogLevel).name();
+            }
+            catch (IllegalArgumentException ex) {
+                // fall back to no logging
+            }
+        }
+        return WireLogger.Level.OFF.name();
+    }
+
+    @DataBoundSetter
+    public void setWireLogLevel(String wireLogLevel) {
+        this.wireLogLevel = wireLogLevel;
+    }
+
+    /**
+     * Gets how many requests are sent for each one written to the log
+     *
+     * @return wireLogSampling, 1 when every request is logged
+     */
+    public int getWireLogSampling() {
+        if (wireLogSampling > 0) {
+            return wireLogSampling;
+        }
+        return 1;
+    }
+
+    @DataBoundSetter
+    public void setWireLogSampling(int wireLogSampling) {
+        this.wireLogSampling = wireLogSampling;
+    }
+
     /**
      * Test whether the client can connect to the UCD site
      *
@@ -301,26 +530,125 @@ public class UCDeploySite implements Serializable {
     }
 
     public void executeJSONGet(URI uri) throws Exception {
-        log.info("[UrbanCode Deploy] uri: " + uri.toString());
-        HttpClient client = getClient();
+        log.debug("[UrbanCode Deploy] uri: {}", uri);
+        // only the start of the response is read to confirm the server answers with JSON
+        JsonStreamReader.Token token = executeGet(getClient(), uri, new JsonStreamReader.Parser<JsonStreamReader.Token>() {
+            @Override
+            public JsonStreamReader.Token parse(JsonStreamReader reader) throws IOException {
+                return reader.peek();
+            }
+        });
+        log.debug("[UrbanCode Deploy] response: JSON {}", token);
+    }
+
+    /**
+     * Execute a GET request against the UCD server
+     *
+     * @param client The client to send the request with
+     * @param uri The uri to request
+     * @return The body of the response
+     * @throws IOException When the server does not respond with 200
+     */
+    public static String executeGet(HttpClient client, URI uri) throws IOException {
+        String result = "";
         HttpGet method = new HttpGet(uri.toString());
         try {
             HttpResponse response = client.execute(method);
-            
             int responseCode = response.getStatusLine().getStatusCode();
             if (responseCode == 401) {
-                throw new Exception("Error connecting to IBM UrbanCode Deploy: Invalid user and/or password");
+                throw new IOException("Error connecting to IBM UrbanCode Deploy: Invalid user and/or password");
             }
             else if (responseCode != 200) {
-                throw new Exception("Error connecting to IBM UrbanCode Deploy: " + responseCode + "using URI: " + uri.toString());
+                throw new IOException("Error connecting to IBM UrbanCode Deploy: " + responseCode + " using URI: " + uri.toString());
             }
             HttpEntity entity = response.getEntity();
             if (entity != null) {
-                log.info("[UrbanCode Deploy] response: " + EntityUtils.toString(entity));
+                result = EntityUtils.toString(entity);
+            }
+        }
+        finally {
+            method.releaseConnection();
+        }
+        return result;
+    }
+
+    /**
+     * Execute a GET request against the UCD server, streaming the JSON response through a parser.
+     * When the parser returns before reaching the end of the response, the rest of it is never
+     * read and the connection is closed instead of being drained.
+     *
+     * @param client The client to send the request with
+     * @param uri The uri to request
+     * @param parser Extracts the result from the response
+     * @return The result of the parser
+     * @throws IOException When the server does not respond with 200
+     * @throws JSONException
+     */
+    public static <T> T executeGet(HttpClient client, URI uri, JsonStreamReader.Parser<T> parser)
+    throws IOException, JSONException {
+        HttpGet method = new HttpGet(uri.toString());
+        HttpEntity entity = null;
+        boolean complete = false;
+        try {
+            HttpResponse response = client.execute(method);
+            int responseCode = response.getStatusLine().getStatusCode();
+            if (responseCode == 401) {
+                throw new IOException("Error connecting to IBM UrbanCode Deploy: Invalid user and/or password");
+            }
+            else if (responseCode != 200) {
+                throw new IOException("Error connecting to IBM UrbanCode Deploy: " + responseCode + " using URI: " + uri.toString());
+            }
+            entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("IBM UrbanCode Deploy returned no content using URI: " + uri.toString());
             }
+
+            JsonStreamReader reader = new JsonStreamReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+            T result = parser.parse(reader);
+            complete = reader.isComplete();
+            return result;
         }
         finally {
+            if (complete) {
+                EntityUtils.consume(entity);  // keeps the connection for reuse
+            }
+            else {
+                method.abort();
+            }
             method.releaseConnection();
         }
     }
+
+    /**
+     * Read the non-secure properties of a property sheet, streaming the response
+     *
+     * @param client The client to send the request with
+     * @param uri The uri of the property sheet
+     * @return The property values by name, in the order returned
+     * @throws IOException
+     * @throws JSONException
+     */
+    public static Map<String, String> getPropertySheet(HttpClient client, URI uri) throws IOException, JSONException {
+        return executeGet(client, uri, new JsonStreamReader.Parser<Map<String, String>>() {
+            @Override
+            public Map<String, String> parse(JsonStreamReader reader) throws IOException {
+                Map<String, String> properties = new LinkedHashMap<String, String>();
+
+                if (reader.findField("properties")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Map<String, String> property = reader.readFields("name", "value", "secure");
+                        // secure values are masked
+                        if (!"true".equals(property.get("secure")) && property.get("name") != null) {
+                            String value = property.get("value");
+                            properties.put(property.get("name"), value != null ? value : "");
+                        }
+                    }
+                    reader.endArray();
+                }
+
+                return properties;
+            }
+        });
+    }
 }
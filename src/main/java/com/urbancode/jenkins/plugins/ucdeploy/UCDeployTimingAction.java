@@ -0,0 +1,138 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.urbancode.jenkins.plugins.ucdeploy.PhaseTimings.Phase;
+
+/**
+ * Build action holding how long each UCD phase of the build took. The timings of every
+ * UCD step in the build are added together. They are shown on the build page and read
+ * through the API at ${BUILD_URL}ucd-timing/api/json, or with the build's own API.
+ *
+ */
+@ExportedBean
+public class UCDeployTimingAction implements Action {
+
+    public static final String URL_NAME = "ucd-timing";
+
+    private final PhaseTimings timings = new PhaseTimings();
+
+    /**
+     * Add the timings of a build step to the action of its build, creating the action if needed
+     *
+     * @param build The build the step ran in
+     * @param stepTimings The timings recorded by the step
+     */
+    public static void record(Run<?, ?> build, PhaseTimings stepTimings) {
+        UCDeployTimingAction action;
+        synchronized (build) {
+            action = build.getAction(UCDeployTimingAction.class);
+            if (action == null) {
+                action = new UCDeployTimingAction();
+                build.addAction(action);
+            }
+        }
+        action.timings.merge(stepTimings);
+    }
+
+    /**
+     * @return The phases which ran, in the order they run in
+     */
+    @Exported(inline = true)
+    public List<PhaseTiming> getPhases() {
+        List<PhaseTiming> phases = new ArrayList<PhaseTiming>();
+        for (Phase phase : Phase.values()) {
+            if (timings.hasRun(phase)) {
+                phases.add(new PhaseTiming(phase, timings.getWallMillis(phase), timings.getCalls(phase),
+                        timings.getBytes(phase)));
+            }
+        }
+        return phases;
+    }
+
+    /**
+     * @return The sum of the wall time of every phase
+     */
+    @Exported
+    public long getTotalMillis() {
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            total += timings.getWallMillis(phase);
+        }
+        return total;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "UrbanCode Deploy Timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class PhaseTiming {
+        private final Phase phase;
+        private final long millis;
+        private final long calls;
+        private final long bytes;
+
+        private PhaseTiming(Phase phase, long millis, long calls, long bytes) {
+            this.phase = phase;
+            this.millis = millis;
+            this.calls = calls;
+            this.bytes = bytes;
+        }
+
+        @Exported
+        public String getName() {
+            return phase.name();
+        }
+
+        @Exported
+        public String getDisplayName() {
+            return phase.getDisplayName();
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        @Exported
+        public long getCalls() {
+            return calls;
+        }
+
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -9,6 +9,7 @@ package com.urbancode.jenkins.plugins.ucdeploy;
 
 import hudson.AbortException;
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
@@ -21,11 +22,16 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.nio.charset.Charset;
 
+import javax.ws.rs.core.UriBuilder;
+
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -37,7 +43,7 @@ import com.urbancode.jenkins.plugins.ucdeploy.ComponentHelper.CreateComponentBlo
 import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.DeliveryBlock;
 import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.Pull;
 import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.Push;
-import com.urbancode.ud.client.ApplicationClient;
+import com.urbancode.jenkins.plugins.ucdeploy.PhaseTimings.Phase;
 import com.urbancode.ud.client.ComponentClient;
 import com.urbancode.ud.client.PropertyClient;
 import com.urbancode.ud.client.VersionClient;
@@ -54,15 +60,29 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class VersionHelper {
     public static final Logger log = LoggerFactory.getLogger(VersionHelper.class);
-    private ApplicationClient appClient;
+
+    /* Milliseconds before the first check of an import, doubled after each check */
+    private static final long IMPORT_POLL_INITIAL_DELAY = 2000;
+
+    /* Longest delay in milliseconds between checks of an import */
+    private static final long IMPORT_POLL_MAX_DELAY = 30000;
+
+    /* Checks in a row without a new version after which an import is considered finished */
+    private static final int IMPORT_QUIET_POLLS = 3;
+
     private ComponentClient compClient;
     private PropertyClient propClient;
     private VersionClient verClient;
     private TaskListener listener;
     private EnvVars envVars;
+    private URI ucdUrl;
+    private DefaultHttpClient httpClient;
+    private FilePath workspace;
+    private PhaseTimings timings = new PhaseTimings();
 
     public VersionHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener, EnvVars envVars) {
-        appClient = new ApplicationClient(ucdUrl, httpClient);
+        this.ucdUrl = ucdUrl;
+        this.httpClient = httpClient;
         compClient = new ComponentClient(ucdUrl, httpClient);
         propClient = new PropertyClient(ucdUrl, httpClient);
         verClient = new VersionClient(ucdUrl, httpClient);
@@ -70,6 +90,24 @@ public class VersionHelper {
         this.envVars = envVars;
     }
 
+    /**
+     * Set the workspace which properties files are read from
+     *
+     * @param workspace The build workspace, or null when the build has none
+     */
+    public void setWorkspace(FilePath workspace) {
+        this.workspace = workspace;
+    }
+
+    /**
+     * Set the timings the phases of the version are recorded in
+     *
+     * @param timings The timings of the build step
+     */
+    public void setTimings(PhaseTimings timings) {
+        this.timings = timings;
+    }
+
     public static class VersionBlock implements Serializable {
         private String componentName;
         private String componentTag;
@@ -130,8 +168,160 @@ public class VersionHelper {
      *
      */
     public void createVersion(VersionBlock versionBlock, String linkName, String linkUrl) throws AbortException {
-        ComponentHelper componentHelper = new ComponentHelper(appClient, compClient, listener, envVars);
-        String componentName = envVars.expand(versionBlock.getComponentName());
+        List<String> componentNames = getComponentNames(versionBlock);
+        // filled by every component, and saved once from this thread so imports never write the global config at once
+        Map<String, String> exportedVars = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+        try {
+            if (componentNames.size() > 1) {
+                if (versionBlock.getDelivery() == null
+                        || versionBlock.getDelivery().getDeliveryType() != DeliveryBlock.DeliveryType.Pull) {
+                    throw new AbortException("Several components can only be given when triggering an import.");
+                }
+                importVersions(versionBlock, componentNames, exportedVars);
+            }
+            else {
+                createVersion(versionBlock, componentNames.isEmpty() ? "" : componentNames.get(0), linkName, linkUrl,
+                        exportedVars);
+            }
+        }
+        finally {
+            if (!exportedVars.isEmpty()) {
+                try {
+                    putEnvVars(exportedVars);
+                }
+                catch (Exception ex) {
+                    listener.getLogger().println("[Warning] Failed to set environment variables " + exportedVars.keySet()
+                            + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand the component name field into the names of the components to version
+     *
+     * @param versionBlock The object containing the data strucutre of the version
+     * @return The names of the components, separated by commas or newlines in the field
+     */
+    public List<String> getComponentNames(VersionBlock versionBlock) {
+        List<String> componentNames = new ArrayList<String>();
+        String expandedNames = envVars.expand(versionBlock.getComponentName());
+
+        if (expandedNames != null) {
+            for (String name : expandedNames.split("[,\n]")) {
+                if (!name.trim().isEmpty()) {
+                    componentNames.add(name.trim());
+                }
+            }
+        }
+
+        return componentNames;
+    }
+
+    /**
+     * Build the read-only checks which confirm a version can be created before anything is changed
+     * on the UCD server
+     *
+     * @param versionBlock The object containing the data strucutre of the version
+     * @return The checks, each returning a problem or null
+     */
+    public List<Callable<String>> getPreflightChecks(VersionBlock versionBlock) {
+        List<Callable<String>> checks = new ArrayList<Callable<String>>();
+        List<String> componentNames = getComponentNames(versionBlock);
+
+        if (componentNames.isEmpty()) {
+            checks.add(PreflightCheck.problem("Component Name is a required property."));
+            return checks;
+        }
+        if (versionBlock.getDelivery() == null) {
+            checks.add(PreflightCheck.problem("You must specify a Delivery Type."));
+        }
+
+        if (versionBlock.createComponentChecked()) {
+            String application = envVars.expand(versionBlock.getCreateComponent().getComponentApplication());
+            if (application != null && !application.isEmpty()) {
+                URI appUri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("application").path("info")
+                        .queryParam("application", application).build();
+                checks.add(PreflightCheck.exists(httpClient, appUri, "Application '" + application + "' was not found"));
+            }
+        }
+        else {
+            for (String componentName : componentNames) {
+                URI compUri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("component").path("info")
+                        .queryParam("component", componentName).build();
+                checks.add(PreflightCheck.exists(httpClient, compUri, "Component '" + componentName + "' was not found"));
+            }
+        }
+
+        return checks;
+    }
+
+    /**
+     * Import new versions of several components at the same time
+     *
+     * @param versionBlock The object containing the data strucutre of the version
+     * @param componentNames The names of the components to import versions of
+     * @param exportedVars Receives the environment variables to set
+     * @throws AbortException When the import of any component failed
+     */
+    private void importVersions(final VersionBlock versionBlock, List<String> componentNames,
+            final Map<String, String> exportedVars) throws AbortException {
+        List<Callable<String>> imports = new ArrayList<Callable<String>>();
+
+        listener.getLogger().println("Importing versions of components " + componentNames);
+        for (final String componentName : componentNames) {
+            imports.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    try {
+                        createVersion(versionBlock, componentName, null, null, exportedVars);
+                        return null;
+                    }
+                    catch (AbortException ex) {
+                        listener.getLogger().println("Failed to import versions of component '" + componentName
+                                + "': " + ex.getMessage());
+                        return componentName;
+                    }
+                }
+            });
+        }
+
+        List<String> results;
+        try {
+            results = RequestPool.invokeAll(imports, UCDeploySite.getMaxConcurrentRequests(httpClient));
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while importing component versions");
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to import component versions: " + ex.getMessage());
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (String result : results) {
+            if (result != null) {
+                failed.add(result);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new AbortException("Failed to import versions of components " + failed);
+        }
+    }
+
+    /**
+     * Creates a new version of a single component
+     *
+     * @param versionBlock The object containing the data strucutre of the version
+     * @param componentName The expanded name of the component
+     * @param linkName The name to give the component version link
+     * @param linkUrl The url to link as a component version
+     * @param exportedVars Receives the environment variables to set
+     * @throws AbortException
+     */
+    private void createVersion(VersionBlock versionBlock, String componentName, String linkName, String linkUrl,
+            Map<String, String> exportedVars) throws AbortException {
+        ComponentHelper componentHelper = new ComponentHelper(ucdUrl, httpClient, listener, envVars);
         String componentTag = envVars.expand(versionBlock.getComponentTag());
 
         if (componentName == null || componentName.isEmpty()) {
@@ -141,16 +331,28 @@ public class VersionHelper {
         // create component
         if (versionBlock.createComponentChecked()) {
             log.info("[UrbanCode Deploy] create component starts...");
-            componentHelper.createComponent(componentName,
-                                            versionBlock.getCreateComponent(),
-                                            versionBlock.getDelivery());
+            timings.begin(Phase.COMPONENT);
+            try {
+                componentHelper.createComponent(componentName,
+                                                versionBlock.getCreateComponent(),
+                                                versionBlock.getDelivery());
+            }
+            finally {
+                timings.end(Phase.COMPONENT);
+            }
             log.info("[UrbanCode Deploy] create component ends...");
         }
 
         // tag component
         if (componentTag != null && !componentTag.isEmpty()) {
             log.info("[UrbanCode Deploy] tag component starts...");
-            componentHelper.addTag(componentName, componentTag);
+            timings.begin(Phase.COMPONENT);
+            try {
+                componentHelper.addTag(componentName, componentTag);
+            }
+            finally {
+                timings.end(Phase.COMPONENT);
+            }
             log.info("[UrbanCode Deploy] tag component ends...");
         }
 
@@ -186,32 +388,41 @@ public class VersionHelper {
                 charset = Charset.forName(charsetString);
                 listener.getLogger().println("Charset Display Name: " + charset.displayName());
             }
+            timings.begin(Phase.UPLOAD);
+            FlightRecorderEvents.Event uploadEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.FILE_UPLOAD);
             try {
                 versionId = verClient.createAndAddVersionFiles(componentName, version, envVars.expand(pushBlock.getPushDescription()), base, "", includes, excludes, true, true, charset, extensions);
             }
             catch (Exception ex) {
                 throw new AbortException("Failed to create component version and uploading files: " + ex.getMessage());
             }
+            finally {
+                uploadEvent.commit(ucdUrl.toString(), "createAndAddVersionFiles", componentName, 0);
+                timings.end(Phase.UPLOAD);
+            }
             listener.getLogger().println("Successfully created component version with UUID '" + versionId.toString() + "' and uploaded files.");
 
-            try {
-                putEnvVar(componentName + "_VersionId", versionId.toString());
-            }
-            catch (Exception ex) {
-                listener.getLogger().println("[Warning] Failed to set version ID as environment variable.");
-            }
+            exportedVars.put(componentName + "_VersionId", versionId.toString());
             log.info("[UrbanCode Deploy] create version and upload files ends...");
 
             // set version properties
             listener.getLogger().println("Setting properties for version '" + version + "' on component '" + componentName + "'");
             log.info("[UrbanCode Deploy] set version properties starts...");
-            setComponentVersionProperties(componentName,
-                                          version,
-                                          DeliveryBlock.mapProperties(envVars.expand(pushBlock.getPushProperties())));
+            Map<String, String> versionProperties =
+                    DeliveryBlock.mapProperties(envVars.expand(pushBlock.getPushProperties()), workspace);
+            int propertyCount = versionProperties.size();
+            timings.begin(Phase.VERSION_PROPERTIES);
+            try {
+                setComponentVersionProperties(componentName, version, versionProperties);
+            }
+            finally {
+                timings.end(Phase.VERSION_PROPERTIES, propertyCount, 0);
+            }
             log.info("[UrbanCode Deploy] set version properties ends...");
 
             // add link
             listener.getLogger().println("Creating component version link '" + linkName + "' to URL '" + linkUrl + "'");
+            timings.begin(Phase.LINK);
             try {
                 log.info("[UrbanCode Deploy] add link starts...");
                 compClient.addComponentVersionLink(componentName, version, linkName, linkUrl);
@@ -222,15 +433,23 @@ public class VersionHelper {
                 log.info("Failed to add a version link: " + ex.getMessage());
                 throw new AbortException("Failed to add a version link: " + ex.getMessage());
             }
+            finally {
+                timings.end(Phase.LINK);
+            }
         }
 
         // import version
         else if (versionBlock.getDelivery().getDeliveryType() == DeliveryBlock.DeliveryType.Pull) {
             Pull pullBlock = (Pull)versionBlock.getDelivery();
 
-            Map<String, String> mappedProperties = DeliveryBlock.mapProperties(envVars.expand(pullBlock.getPullProperties()));
+            Map<String, String> mappedProperties = DeliveryBlock.mapProperties(envVars.expand(pullBlock.getPullProperties()), workspace);
             listener.getLogger().println("Using runtime properties " + mappedProperties);
 
+            Map<String, String> existingVersions = null;
+            if (pullBlock.getWaitForImport()) {
+                existingVersions = getVersions(componentName);
+            }
+
             try {
                 log.info("[UrbanCode Deploy] import version starts...");
                 compClient.importComponentVersions(componentName, mappedProperties);
@@ -247,6 +466,11 @@ public class VersionHelper {
                 log.info("An error occurred while creating JSON version import object : " + ex.getMessage());
                 throw new AbortException("An error occurred while creating JSON version import object : " + ex.getMessage());
             }
+
+            if (existingVersions != null) {
+                List<String> imported = awaitImport(componentName, existingVersions, pullBlock.getImportTimeout());
+                exportedVars.put(componentName + "_ImportedVersions", StringUtils.join(imported, ","));
+            }
         }
 
         // invalid type
@@ -257,6 +481,101 @@ public class VersionHelper {
         }
     }
 
+    /**
+     * Wait for an import to create its versions. The versions of the component are checked
+     * with a growing delay, and the import is complete once IMPORT_QUIET_POLLS checks in a row
+     * found no other new version. The server does not report the status of an import, so an
+     * import which finds nothing new completes the same way, with no imported versions.
+     *
+     * @param componentName The name of the component being imported
+     * @param existingVersions The version ids and names of the component before the import
+     * @param timeout The number of seconds to wait
+     * @return The names of the imported versions
+     * @throws AbortException When the import was still creating versions after the timeout
+     */
+    private List<String> awaitImport(String componentName, Map<String, String> existingVersions, int timeout)
+    throws AbortException {
+        long deadline = System.currentTimeMillis() + timeout * 1000L;
+        long delay = IMPORT_POLL_INITIAL_DELAY;
+        int quietPolls = 0;
+        Map<String, String> imported = new LinkedHashMap<String, String>();
+
+        listener.getLogger().println("Waiting up to " + timeout + " seconds for the import of component '"
+                + componentName + "' to finish");
+
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(Math.min(delay, Math.max(1, deadline - System.currentTimeMillis())));
+            }
+            catch (InterruptedException ex) {
+                throw new AbortException("Interrupted while waiting for the import of component '" + componentName + "'");
+            }
+            delay = Math.min(delay * 2, IMPORT_POLL_MAX_DELAY);
+
+            Map<String, String> current = getVersions(componentName);
+            current.keySet().removeAll(existingVersions.keySet());
+
+            if (!current.keySet().equals(imported.keySet())) {
+                imported = current;
+                quietPolls = 0;
+                delay = IMPORT_POLL_INITIAL_DELAY;
+            }
+            else if (++quietPolls >= IMPORT_QUIET_POLLS) {
+                if (imported.isEmpty()) {
+                    listener.getLogger().println("The import of component '" + componentName
+                            + "' created no new versions");
+                }
+                else {
+                    listener.getLogger().println("Imported versions " + imported.values() + " of component '"
+                            + componentName + "'");
+                }
+                return new ArrayList<String>(imported.values());
+            }
+        }
+
+        if (imported.isEmpty()) {
+            throw new AbortException("The import of component '" + componentName + "' did not finish within "
+                    + timeout + " seconds");
+        }
+        throw new AbortException("The import of component '" + componentName + "' was still creating versions after "
+                + timeout + " seconds. Imported so far: " + imported.values());
+    }
+
+    /**
+     * Get every version of a component
+     *
+     * @param componentName The name of the component
+     * @return The version names keyed by version id, in the order returned by the server
+     * @throws AbortException
+     */
+    private Map<String, String> getVersions(String componentName) throws AbortException {
+        try {
+            URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("component").path("versions")
+                    .queryParam("component", componentName).build();
+            return UCDeploySite.executeGet(httpClient, uri, new JsonStreamReader.Parser<Map<String, String>>() {
+                @Override
+                public Map<String, String> parse(JsonStreamReader reader) throws IOException {
+                    Map<String, String> versions = new LinkedHashMap<String, String>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Map<String, String> version = reader.readFields("id", "name");
+                        String id = version.get("id");
+                        versions.put(id != null ? id : version.get("name"), version.get("name"));
+                    }
+                    reader.endArray();
+                    return versions;
+                }
+            });
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to list versions of component '" + componentName + "': " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the versions of component '" + componentName
+                    + "': " + ex.getMessage());
+        }
+    }
+
     /**
      * Upload files to component version
      *
@@ -287,6 +606,7 @@ public class VersionHelper {
         	throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not contain any files to upload. Please place files.");
         }
 
+        FlightRecorderEvents.Event uploadEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.FILE_UPLOAD);
         try {
             verClient.addVersionFiles(component,
                                       version,
@@ -300,17 +620,18 @@ public class VersionHelper {
         catch (Exception ex) {
             throw new AbortException("Failed to upload files: " + ex.getMessage());
         }
+        finally {
+            uploadEvent.commit(ucdUrl.toString(), "addVersionFiles", component, 0);
+        }
     }
 
     /**
-     * Set environment variable.
-     * @param key
-     * @param value
+     * Set global environment variables, saving the Jenkins configuration once.
+     * @param vars The values keyed by variable name
      * @throws IOException
      */
-    private void putEnvVar(String key, String value) throws IOException {
-        key = key.replaceAll(" ", "_");
-        listener.getLogger().println("Setting environment variable " + key + ".");
+    private void putEnvVars(Map<String, String> vars) throws IOException {
+        FlightRecorderEvents.Event saveEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.ENV_VAR_SAVE);
         Jenkins jenkins = Jenkins.getInstance();
         DescribableList<NodeProperty<?>, NodePropertyDescriptor> globalNodeProperties =
                 jenkins.getGlobalNodeProperties();
@@ -327,8 +648,24 @@ public class VersionHelper {
         } else {
            envVars = envVarsNodePropertyList.get(0).getEnvVars();
         }
-        envVars.put(key, value);
-        jenkins.save();
+
+        List<String> keys = new ArrayList<String>();
+        long bytes = 0;
+        synchronized (vars) {
+            for (Map.Entry<String, String> entry : vars.entrySet()) {
+                String key = entry.getKey().replaceAll(" ", "_");
+                listener.getLogger().println("Setting environment variable " + key + ".");
+                envVars.put(key, entry.getValue());
+                keys.add(key);
+                bytes += entry.getValue() != null ? entry.getValue().length() : 0;
+            }
+        }
+        try {
+            jenkins.save();
+        }
+        finally {
+            saveEvent.commit(ucdUrl.toString(), StringUtils.join(keys, ","), null, bytes);
+        }
      }
 
     /**
@@ -0,0 +1,278 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Turns the component versions of a deployment into concrete version names before the
+ * application process is requested. Symbolic versions are resolved and named versions
+ * are confirmed to exist, with all components looked up at once.
+ *
+ * A version may be given as:
+ *   latest          - the most recently created version of the component
+ *   latest=STATUS   - the most recently created version holding the given status
+ *
+ * Symbolic versions are always resolved against the server, since a new version may
+ * have been created at any moment. Only named versions which were confirmed to exist
+ * are cached.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class VersionResolver {
+
+    /* Symbolic version selecting the newest version of a component */
+    public static final String LATEST = "latest";
+
+    /* Milliseconds a confirmed version is trusted, kept short since versions may be deleted */
+    private static final long RESOLVED_VERSION_TTL = 60 * 1000;
+
+    /* Newest versions of a component checked for a status before giving up */
+    public static final int MAX_STATUS_CHECKS = 50;
+
+    /* Confirmed version names keyed by server, user, component and version */
+    private static final ExpiringCache<String, String> resolvedVersions =
+            new ExpiringCache<String, String>(RESOLVED_VERSION_TTL);
+
+    private URI ucdUrl;
+    private DefaultHttpClient httpClient;
+    private String clientKey;
+
+    public VersionResolver(URI ucdUrl, DefaultHttpClient httpClient) {
+        this.ucdUrl = ucdUrl;
+        this.httpClient = httpClient;
+        // lookups are only shared between clients of the same server and user
+        clientKey = ucdUrl + "|" + UCDeploySite.getClientIdentity(httpClient);
+    }
+
+    public static ExpiringCache<String, String> getResolvedVersionCache() {
+        return resolvedVersions;
+    }
+
+    /**
+     * Resolve every requested version, failing when any of them does not exist
+     *
+     * @param componentVersions The requested versions of each component
+     * @return The concrete versions of each component, in the order requested
+     * @throws AbortException Listing every version which could not be found
+     */
+    public Map<String, List<String>> resolve(Map<String, List<String>> componentVersions) throws AbortException {
+        List<String> problems = new ArrayList<String>();
+        Map<String, List<String>> resolved = resolve(componentVersions, problems);
+
+        if (!problems.isEmpty()) {
+            StringBuilder message = new StringBuilder("Could not find " + problems.size() + " component version(s):");
+            for (String problem : problems) {
+                message.append("\n  - ").append(problem);
+            }
+            throw new AbortException(message.toString());
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Resolve every requested version, collecting the versions which do not exist
+     *
+     * @param componentVersions The requested versions of each component
+     * @param problems Receives a description of each version which could not be found
+     * @return The concrete versions of each component, leaving out those which could not be found
+     * @throws AbortException When the lookups could not be run
+     */
+    public Map<String, List<String>> resolve(Map<String, List<String>> componentVersions, List<String> problems)
+    throws AbortException {
+        final Map<String, String> found = new ConcurrentHashMap<String, String>();
+        List<Callable<String>> lookups = new ArrayList<Callable<String>>();
+
+        for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
+            final String component = entry.getKey();
+            for (final String version : entry.getValue()) {
+                lookups.add(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            found.put(component + ":" + version, resolveVersion(component, version));
+                            return null;
+                        }
+                        catch (Exception ex) {
+                            return "Component '" + component + "' has no version '" + version + "' ("
+                                    + ex.getMessage() + ")";
+                        }
+                    }
+                });
+            }
+        }
+
+        List<String> results;
+        try {
+            results = RequestPool.invokeAll(lookups, UCDeploySite.getMaxConcurrentRequests(httpClient));
+        }
+        catch (InterruptedException ex) {
+            throw new AbortException("Interrupted while resolving component versions");
+        }
+        catch (Exception ex) {
+            throw new AbortException("Failed to resolve component versions: " + ex.getMessage());
+        }
+
+        for (String result : results) {
+            if (result != null) {
+                problems.add(result);
+            }
+        }
+
+        Map<String, List<String>> resolved = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
+            List<String> versions = new ArrayList<String>();
+            for (String version : entry.getValue()) {
+                String name = found.get(entry.getKey() + ":" + version);
+                if (name != null && !versions.contains(name)) {
+                    versions.add(name);
+                }
+            }
+            resolved.put(entry.getKey(), versions);
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Find the concrete name of a single requested version
+     *
+     * @param component The name of the component
+     * @param version The requested version, which may be symbolic
+     * @return The name of the version
+     * @throws IOException When the version does not exist
+     * @throws JSONException
+     */
+    private String resolveVersion(String component, String version) throws IOException, JSONException {
+        if (version.equalsIgnoreCase(LATEST)) {
+            return findLatestVersion(component, null);
+        }
+        if (version.toLowerCase().startsWith(LATEST + "=")) {
+            return findLatestVersion(component, version.substring(LATEST.length() + 1).trim());
+        }
+
+        String key = clientKey + "|" + component + "|" + version;
+        if (resolvedVersions.get(key) != null) {
+            return version;
+        }
+
+        URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("version").path("getVersionId")
+                .queryParam("component", component).queryParam("version", version).build();
+        UCDeploySite.executeGet(httpClient, uri);
+
+        resolvedVersions.put(key, version);
+        return version;
+    }
+
+    /**
+     * Find the most recently created version of a component, optionally holding a status.
+     * Only the MAX_STATUS_CHECKS newest versions are checked for the status.
+     *
+     * @param component The name of the component
+     * @param status The status the version must hold, or null for any version
+     * @return The name of the version
+     * @throws IOException When no such version exists
+     * @throws JSONException
+     */
+    private String findLatestVersion(String component, String status) throws IOException, JSONException {
+        URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("component").path("versions")
+                .queryParam("component", component).build();
+        List<Map<String, String>> versions = UCDeploySite.executeGet(httpClient, uri,
+                new JsonStreamReader.Parser<List<Map<String, String>>>() {
+            @Override
+            public List<Map<String, String>> parse(JsonStreamReader reader) throws IOException {
+                List<Map<String, String>> versions = new ArrayList<Map<String, String>>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Map<String, String> version = reader.readFields("name", "created", "archived");
+                    if (!"true".equals(version.get("archived"))) {
+                        versions.add(version);
+                    }
+                }
+                reader.endArray();
+                return versions;
+            }
+        });
+
+        // newest first, keeping the server order for versions without a creation date
+        Collections.sort(versions, new Comparator<Map<String, String>>() {
+            @Override
+            public int compare(Map<String, String> first, Map<String, String> second) {
+                long firstCreated = getCreated(first);
+                long secondCreated = getCreated(second);
+                return firstCreated < secondCreated ? 1 : (firstCreated > secondCreated ? -1 : 0);
+            }
+        });
+
+        if (versions.isEmpty()) {
+            throw new IOException("the component has no versions");
+        }
+        if (status == null) {
+            return versions.get(0).get("name");
+        }
+
+        // statuses are checked newest first, stopping at the first match
+        int checks = Math.min(versions.size(), MAX_STATUS_CHECKS);
+        for (int i = 0; i < checks; i++) {
+            String name = versions.get(i).get("name");
+            if (hasStatus(component, name, status)) {
+                return name;
+            }
+        }
+
+        if (checks < versions.size()) {
+            throw new IOException("none of the " + checks + " newest versions has the status '" + status + "'");
+        }
+        throw new IOException("no version has the status '" + status + "'");
+    }
+
+    private static long getCreated(Map<String, String> version) {
+        try {
+            return Long.parseLong(version.get("created"));
+        }
+        catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private boolean hasStatus(String component, String version, String status) throws IOException, JSONException {
+        URI uri = UriBuilder.fromPath(ucdUrl.toString()).path("cli").path("version").path("getStatuses")
+                .queryParam("component", component).queryParam("version", version).build();
+        JSONArray statuses = new JSONArray(UCDeploySite.executeGet(httpClient, uri));
+
+        for (int i = 0; i < statuses.length(); i++) {
+            JSONObject versionStatus = statuses.getJSONObject(i);
+            JSONObject statusObj = versionStatus.optJSONObject("status");
+            String name = statusObj != null ? statusObj.optString("name") : versionStatus.optString("name");
+            if (status.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Debug logging of the requests sent to one UCD server from this JVM. Every client of
+ * a site shares one wire logger, installed as a request and response interceptor.
+ * Logging is off unless the site enables it, and nothing is formatted for requests
+ * which are not logged. Only every Nth request is logged when sampling is set, and
+ * response bodies are cut to their first MAX_BODY_BYTES bytes.
+ *
+ * The configured level can be overridden at runtime through the ucd-metrics endpoint
+ * without saving the global configuration.
+ *
+ */
+public class WireLogger implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    public enum Level {
+        OFF,    // nothing is logged
+        BASIC,  // the request line, response status and time taken
+        BODY    // also the start of each response body
+    }
+
+    public static final Logger log = LoggerFactory.getLogger(WireLogger.class);
+
+    /* Bytes of a response body written to the log */
+    public static final int MAX_BODY_BYTES = 2048;
+
+    private static final ConcurrentMap<String, WireLogger> loggers = new ConcurrentHashMap<String, WireLogger>();
+
+    private final String site;
+    private final ThreadLocal<Exchange> currentExchange = new ThreadLocal<Exchange>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong logged = new AtomicLong();
+
+    private volatile Level configuredLevel = Level.OFF;
+    private volatile Level overrideLevel;
+    private volatile int sampling = 1;
+
+    private WireLogger(String site) {
+        this.site = site;
+    }
+
+    /**
+     * Get the wire logger shared by all clients of a UCD server
+     *
+     * @param site The url of the UCD server
+     * @return The wire logger of the server
+     */
+    public static WireLogger forSite(String site) {
+        WireLogger logger = loggers.get(site);
+        if (logger == null) {
+            WireLogger created = new WireLogger(site);
+            logger = loggers.putIfAbsent(site, created);
+            if (logger == null) {
+                logger = created;
+            }
+        }
+        return logger;
+    }
+
+    public static Map<String, WireLogger> getLoggers() {
+        return loggers;
+    }
+
+    /**
+     * Apply the logging settings saved with the site
+     *
+     * @param level The configured level
+     * @param sampling Log one of every this many requests, 1 to log every request
+     */
+    public void configure(Level level, int sampling) {
+        this.configuredLevel = level != null ? level : Level.OFF;
+        this.sampling = Math.max(1, sampling);
+    }
+
+    /**
+     * Override the configured level until the override is cleared or Jenkins restarts
+     *
+     * @param level The level to use, or null to go back to the configured level
+     */
+    public void setOverride(Level level) {
+        if (level != overrideLevel) {
+            log.info("[UrbanCode Deploy] Wire logging of {} set to {}", site, level != null ? level : configuredLevel);
+        }
+        overrideLevel = level;
+    }
+
+    public Level getLevel() {
+        Level override = overrideLevel;
+        return override != null ? override : configuredLevel;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        currentExchange.remove();
+
+        Level level = getLevel();
+        if (level == Level.OFF || !log.isInfoEnabled()) {
+            return;
+        }
+        if (requests.getAndIncrement() % sampling != 0) {
+            return;
+        }
+
+        currentExchange.set(new Exchange(level, request, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        Exchange exchange = currentExchange.get();
+        if (exchange == null) {
+            return;
+        }
+        currentExchange.remove();
+        logged.incrementAndGet();
+
+        log.info("[UrbanCode Deploy] {} -> {} in {} ms", new Object[] {exchange.request.getRequestLine(),
+                response.getStatusLine().getStatusCode(), System.currentTimeMillis() - exchange.started});
+
+        HttpEntity entity = response.getEntity();
+        if (exchange.level == Level.BODY && entity != null) {
+            response.setEntity(new CapturedEntity(entity, exchange.request));
+        }
+    }
+
+    /**
+     * Get the settings and counts of the wire logger
+     *
+     * @return The metrics as a JSON object
+     * @throws JSONException
+     */
+    public JSONObject getMetrics() throws JSONException {
+        JSONObject metrics = new JSONObject();
+        metrics.put("level", getLevel().name());
+        metrics.put("overridden", overrideLevel != null);
+        metrics.put("sampling", sampling);
+        metrics.put("requests", requests.get());
+        metrics.put("logged", logged.get());
+        return metrics;
+    }
+
+    private static class Exchange {
+        private final Level level;
+        private final HttpRequest request;
+        private final long started;
+
+        private Exchange(Level level, HttpRequest request, long started) {
+            this.level = level;
+            this.request = request;
+            this.started = started;
+        }
+    }
+
+    /**
+     * Response entity which keeps a copy of the start of the body as it is read, and logs
+     * it once the body has been read or closed
+     */
+    private static class CapturedEntity extends HttpEntityWrapper {
+        private final HttpRequest request;
+
+        private CapturedEntity(HttpEntity entity, HttpRequest request) {
+            super(entity);
+            this.request = request;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CaptureStream(super.getContent(), request);
+        }
+    }
+
+    private static class CaptureStream extends FilterInputStream {
+        private final HttpRequest request;
+        private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private long total;
+        private boolean written;
+
+        private CaptureStream(InputStream in, HttpRequest request) {
+            super(in);
+            this.request = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                write(true);
+            }
+            else {
+                capture(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count == -1) {
+                write(true);
+            }
+            else {
+                capture(buffer, offset, count);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            write(false);
+            super.close();
+        }
+
+        private void capture(byte[] buffer, int offset, int count) {
+            int room = MAX_BODY_BYTES - captured.size();
+            if (room > 0) {
+                captured.write(buffer, offset, Math.min(room, count));
+            }
+            total += count;
+        }
+
+        private void write(boolean complete) {
+            if (written) {
+                return;
+            }
+            written = true;
+
+            String size = complete ? total + " bytes" : "first " + total + " bytes read";
+            String body;
+            try {
+                body = captured.toString("UTF-8");
+            }
+            catch (IOException ex) {
+                body = captured.toString();
+            }
+            log.info("[UrbanCode Deploy] {} response body ({}{}): {}", new Object[] {request.getRequestLine(), size,
+                    total > MAX_BODY_BYTES ? ", truncated" : "", body});
+        }
+    }
+}
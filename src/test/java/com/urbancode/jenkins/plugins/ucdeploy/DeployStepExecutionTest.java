@@ -0,0 +1,41 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.urbancode.jenkins.plugins.ucdeploy.DeployStepExecution.ResumeAction;
+
+public class DeployStepExecutionTest {
+
+    @Test
+    public void resumedFanOutKeepsPolling() {
+        assertEquals(ResumeAction.POLL_FAN_OUT, DeployStepExecution.getResumeAction(true, false, null));
+        assertEquals(ResumeAction.POLL_FAN_OUT, DeployStepExecution.getResumeAction(true, true, null));
+    }
+
+    @Test
+    public void resumedQueuedStepRejoinsTheQueue() {
+        assertEquals(ResumeAction.ENQUEUE, DeployStepExecution.getResumeAction(false, true, null));
+    }
+
+    @Test
+    public void resumedStepWithoutRequestFails() {
+        assertEquals(ResumeAction.FAIL, DeployStepExecution.getResumeAction(false, false, null));
+    }
+
+    @Test
+    public void resumedStepPollsItsRequest() {
+        String requestId = "2f0b7a4e-5b3c-4f4e-9a57-0d1d6f1f3c11";
+        assertEquals(ResumeAction.POLL_REQUEST, DeployStepExecution.getResumeAction(false, false, requestId));
+        // a request which was submitted is polled even if the queue flag was left set
+        assertEquals(ResumeAction.POLL_REQUEST, DeployStepExecution.getResumeAction(false, true, requestId));
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JsonStreamReaderTest {
+
+    @Test
+    public void unicodeEscapes() throws Exception {
+        JsonStreamReader reader = reader("[\"caf\\u00e9\", \"\\u4E2D\", \"\\ud83d\\ude00\", \"\\u0041B\"]");
+
+        reader.beginArray();
+        assertEquals("caf\u00e9", reader.nextString());
+        assertEquals("\u4e2d", reader.nextString());
+        assertEquals("\ud83d\ude00", reader.nextString());
+        assertEquals("AB", reader.nextString());
+        reader.endArray();
+        assertTrue(reader.isComplete());
+    }
+
+    @Test
+    public void simpleEscapes() throws Exception {
+        JsonStreamReader reader = reader("\"a\\\"b\\\\c\\/d\\n\\t\\r\\b\\f\"");
+
+        assertEquals("a\"b\\c/d\n\t\r\b\f", reader.nextString());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidUnicodeEscape() throws Exception {
+        reader("\"\\u12G4\"").nextString();
+    }
+
+    @Test(expected = IOException.class)
+    public void signedUnicodeEscape() throws Exception {
+        reader("\"\\u-123\"").nextString();
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedUnicodeEscape() throws Exception {
+        reader("\"\\u00").nextString();
+    }
+
+    @Test
+    public void numbers() throws Exception {
+        JsonStreamReader reader = reader("[0, -12, 3.25, -1.5e10, 6E-3, 1234567890123456789]");
+
+        reader.beginArray();
+        assertEquals(JsonStreamReader.Token.NUMBER, reader.peek());
+        assertEquals("0", reader.nextString());
+        assertEquals("-12", reader.nextString());
+        assertEquals("3.25", reader.nextString());
+        assertEquals("-1.5e10", reader.nextString());
+        assertEquals("6E-3", reader.nextString());
+        assertEquals("1234567890123456789", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    public void numbersEndAtTheirDelimiter() throws Exception {
+        Map<String, String> fields = reader("{\"a\":1,\"b\":2}").readFields("a", "b");
+
+        assertEquals("1", fields.get("a"));
+        assertEquals("2", fields.get("b"));
+    }
+
+    @Test
+    public void literals() throws Exception {
+        JsonStreamReader reader = reader("[true, false, null]");
+
+        reader.beginArray();
+        assertEquals(JsonStreamReader.Token.BOOLEAN, reader.peek());
+        assertEquals("true", reader.nextString());
+        assertEquals("false", reader.nextString());
+        assertEquals(JsonStreamReader.Token.NULL, reader.peek());
+        assertNull(reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    public void readFieldsSkipsNestedValues() throws Exception {
+        JsonStreamReader reader = reader("{\"children\": [{\"id\": \"inner\", \"x\": [[1, {\"y\": {}}]]}],"
+                + " \"id\": \"outer\", \"name\": {\"id\": \"nested\"}, \"state\": null}");
+
+        Map<String, String> fields = reader.readFields("id", "name", "state");
+
+        assertEquals("outer", fields.get("id"));
+        assertFalse(fields.containsKey("name"));
+        assertTrue(fields.containsKey("state"));
+        assertNull(fields.get("state"));
+        assertTrue(reader.isComplete());
+    }
+
+    @Test
+    public void nestedObjectsTrackTheirDepth() throws Exception {
+        JsonStreamReader reader = reader("{\"a\": {\"b\": [{\"c\": \"d\"}]}}");
+
+        reader.beginObject();
+        assertEquals("a", reader.nextName());
+        reader.beginObject();
+        assertEquals("b", reader.nextName());
+        reader.beginArray();
+        assertEquals(3, reader.getDepth());
+        assertEquals("d", reader.readFields("c").get("c"));
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.endObject();
+        reader.endObject();
+        assertEquals(0, reader.getDepth());
+        assertTrue(reader.isComplete());
+    }
+
+    @Test
+    public void deepNestingIsSkipped() throws Exception {
+        StringBuilder json = new StringBuilder("{\"deep\": ");
+        for (int i = 0; i < 100; i++) {
+            json.append("[{\"x\": ");
+        }
+        json.append("1");
+        for (int i = 0; i < 100; i++) {
+            json.append("}]");
+        }
+        json.append(", \"after\": \"found\"}");
+
+        JsonStreamReader reader = reader(json.toString());
+
+        assertTrue(reader.findField("after"));
+        assertEquals("found", reader.nextString());
+        reader.endObject();
+        assertTrue(reader.isComplete());
+    }
+
+    @Test
+    public void findFieldReadsToTheEndWhenMissing() throws Exception {
+        JsonStreamReader reader = reader("[{\"a\": [1, 2]}, {\"b\": \"x\"}]");
+
+        reader.beginArray();
+        assertFalse(reader.findField("b"));
+        assertTrue(reader.findField("b"));
+        assertEquals("x", reader.nextString());
+        reader.endObject();
+        reader.endArray();
+        assertTrue(reader.isComplete());
+    }
+
+    @Test
+    public void emptyContainers() throws Exception {
+        JsonStreamReader reader = reader(" [ {}, [], {\"a\": []} ] ");
+
+        reader.beginArray();
+        reader.beginObject();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        reader.beginArray();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.skipValue();
+        reader.endArray();
+        assertTrue(reader.isComplete());
+    }
+
+    @Test(expected = IOException.class)
+    public void missingComma() throws Exception {
+        JsonStreamReader reader = reader("[1 2]");
+        reader.beginArray();
+        reader.nextString();
+        reader.nextString();
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedString() throws Exception {
+        reader("\"abc").nextString();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedDocument() throws Exception {
+        reader("{\"a\": [1, 2").skipValue();
+    }
+
+    private static JsonStreamReader reader(String json) {
+        return new JsonStreamReader(new StringReader(json));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.AbortException;
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManifestReaderTest {
+
+    private File directory;
+    private FilePath workspace;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("manifest", "");
+        directory.delete();
+        directory.mkdir();
+        workspace = new FilePath(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        workspace.deleteRecursive();
+    }
+
+    @Test
+    public void workspacePathsStayInsideTheWorkspace() {
+        assertTrue(ManifestReader.isWorkspacePath("deploy/versions.txt"));
+        assertTrue(ManifestReader.isWorkspacePath("deploy/..versions.txt"));
+
+        assertFalse(ManifestReader.isWorkspacePath("/etc/passwd"));
+        assertFalse(ManifestReader.isWorkspacePath("\\\\server\\share\\versions.txt"));
+        assertFalse(ManifestReader.isWorkspacePath("C:\\versions.txt"));
+        assertFalse(ManifestReader.isWorkspacePath("../../secrets"));
+        assertFalse(ManifestReader.isWorkspacePath("deploy/../../secrets"));
+        assertFalse(ManifestReader.isWorkspacePath("deploy\\..\\..\\secrets"));
+    }
+
+    @Test(expected = AbortException.class)
+    public void referenceOutsideTheWorkspaceFails() throws Exception {
+        ManifestReader.open("@../secrets", workspace);
+    }
+
+    @Test
+    public void inlinePropertiesKeepTheLastValue() throws Exception {
+        Map<String, String> properties = ManifestReader.open("a=1\n#b=2\n\na=3", null).readProperties();
+
+        assertEquals("3", properties.get("a"));
+        assertEquals("2", properties.get("#b"));
+    }
+
+    @Test
+    public void inlineVersionsKeepRepeatedPairs() throws Exception {
+        Map<String, List<String>> versions = ManifestReader.open("web:1.0\nweb:1.0", null).readComponentVersions();
+
+        assertEquals(Arrays.asList("1.0", "1.0"), versions.get("web"));
+    }
+
+    @Test
+    public void referencedFileSkipsComments() throws Exception {
+        workspace.child("request.properties").write("# request properties\na=1\n\nb=x=y\n", "UTF-8");
+
+        Map<String, String> properties = ManifestReader.open("@request.properties", workspace).readProperties();
+
+        assertEquals(2, properties.size());
+        assertEquals("1", properties.get("a"));
+        assertEquals("x=y", properties.get("b"));
+    }
+
+    @Test(expected = AbortException.class)
+    public void referencedFileRejectsRepeatedProperties() throws Exception {
+        workspace.child("request.properties").write("a=1\na=2\n", "UTF-8");
+
+        ManifestReader.open("@request.properties", workspace).readProperties();
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SiteRequestLimiterTest {
+
+    private static int sites;
+
+    private SiteRequestLimiter limiter;
+    private PoolManager pool;
+    private ClientConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        limiter = SiteRequestLimiter.forSite("http://limiter-test-" + sites++ + ".example.com");
+        limiter.setLimits(2, 0);
+        pool = new PoolManager();
+        manager = limiter.wrap(pool);
+    }
+
+    @Test
+    public void abortingAConnectionReleasesItsPermit() throws Exception {
+        ManagedClientConnection connection = send();
+        assertEquals(1, getActiveRequests());
+
+        connection.abortConnection();
+        assertEquals(0, getActiveRequests());
+    }
+
+    @Test
+    public void releasingAConnectionReleasesItsPermit() throws Exception {
+        ManagedClientConnection connection = send();
+        send();
+        assertEquals(2, getActiveRequests());
+
+        connection.releaseConnection();
+        assertEquals(1, getActiveRequests());
+    }
+
+    @Test
+    public void releasingThroughTheManagerReleasesThePermit() throws Exception {
+        ManagedClientConnection connection = send();
+
+        manager.releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+        assertEquals(0, getActiveRequests());
+        assertSame(pool.connections.get(0), pool.released.get(0));
+    }
+
+    @Test
+    public void retriesOnTheSameConnectionKeepOnePermit() throws Exception {
+        ManagedClientConnection connection = leaseConnection();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+
+        limiter.process(get(), context);
+        limiter.process(get(), context);
+        assertEquals(1, getActiveRequests());
+
+        connection.releaseConnection();
+        connection.abortConnection();
+        assertEquals(0, getActiveRequests());
+    }
+
+    @Test
+    public void shutdownReleasesLeasedConnections() throws Exception {
+        send();
+        send();
+
+        manager.shutdown();
+        assertEquals(0, getActiveRequests());
+    }
+
+    @Test
+    public void releasedPermitAdmitsAWaitingRequest() throws Exception {
+        limiter.setLimits(1, 0);
+        final ManagedClientConnection first = send();
+
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    first.abortConnection();
+                }
+                catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+        releaser.start();
+
+        // waits for the permit of the first connection
+        send();
+        releaser.join();
+        assertEquals(1, getActiveRequests());
+    }
+
+    private ManagedClientConnection send() throws Exception {
+        ManagedClientConnection connection = leaseConnection();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+        limiter.process(get(), context);
+        return connection;
+    }
+
+    private ManagedClientConnection leaseConnection() throws Exception {
+        return manager.requestConnection(null, null).getConnection(0, TimeUnit.MILLISECONDS);
+    }
+
+    private int getActiveRequests() throws Exception {
+        return limiter.getMetrics().getInt("activeRequests");
+    }
+
+    private static HttpRequest get() {
+        return new BasicHttpRequest("GET", "/rest/deploy/application");
+    }
+
+    /**
+     * Hands out connections which go back to this manager when released or aborted,
+     * like the connections of a pooling connection manager
+     */
+    private static class PoolManager implements ClientConnectionManager {
+        private final List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>();
+        private final List<ManagedClientConnection> released = new ArrayList<ManagedClientConnection>();
+
+        @Override
+        public SchemeRegistry getSchemeRegistry() {
+            return null;
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit) {
+                    ManagedClientConnection connection = createConnection();
+                    connections.add(connection);
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit unit) {
+            released.add(connection);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit unit) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        private ManagedClientConnection createConnection() {
+            return (ManagedClientConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { ManagedClientConnection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("releaseConnection") || name.equals("abortConnection")) {
+                        releaseConnection((ManagedClientConnection) proxy, 0, TimeUnit.MILLISECONDS);
+                    }
+                    else if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    else if (method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    else if (method.getReturnType() == int.class) {
+                        return 0;
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SiteRequestMetricsTest {
+
+    private static final String OPERATION = "GET rest/deploy/application";
+
+    private static int sites;
+
+    private SiteRequestMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = SiteRequestMetrics.forSite("http://metrics-test-" + sites++ + ".example.com");
+    }
+
+    @Test
+    public void responseIsCountedOnce() throws Exception {
+        ManagedClientConnection connection = createConnection();
+        HttpContext context = send(connection);
+
+        metrics.process(ok(), context);
+        metrics.connectionReleased(connection);
+
+        JSONObject stats = getStats();
+        assertEquals(1, stats.getInt("requests"));
+        assertEquals(0, stats.getInt("failedWithoutResponse"));
+        assertEquals(1, stats.getJSONObject("statusCodes").getInt("200"));
+    }
+
+    @Test
+    public void requestWithoutResponseFailsWhenItsConnectionIsReleased() throws Exception {
+        ManagedClientConnection connection = createConnection();
+        send(connection);
+        assertEquals(0, getStats().getInt("failedWithoutResponse"));
+
+        metrics.connectionReleased(connection);
+        metrics.connectionReleased(connection);
+        assertEquals(1, getStats().getInt("failedWithoutResponse"));
+    }
+
+    @Test
+    public void retriedRequestCountsTheFailedAttempt() throws Exception {
+        ManagedClientConnection connection = createConnection();
+        HttpContext context = send(connection);
+
+        metrics.process(new BasicHttpRequest("GET", "/rest/deploy/application"), context);
+        metrics.process(ok(), context);
+        metrics.connectionReleased(connection);
+
+        JSONObject stats = getStats();
+        assertEquals(2, stats.getInt("requests"));
+        assertEquals(1, stats.getInt("retries"));
+        assertEquals(1, stats.getInt("failedWithoutResponse"));
+    }
+
+    @Test
+    public void failuresStayWithTheirConnection() throws Exception {
+        ManagedClientConnection failing = createConnection();
+        ManagedClientConnection answering = createConnection();
+        send(failing);
+        HttpContext context = send(answering);
+
+        metrics.connectionReleased(failing);
+        metrics.process(ok(), context);
+
+        JSONObject stats = getStats();
+        assertEquals(2, stats.getInt("requests"));
+        assertEquals(1, stats.getInt("failedWithoutResponse"));
+        assertEquals(1, stats.getJSONObject("statusCodes").getInt("200"));
+    }
+
+    private HttpContext send(ManagedClientConnection connection) throws Exception {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+        metrics.process(new BasicHttpRequest("GET", "/rest/deploy/application"), context);
+        return context;
+    }
+
+    private JSONObject getStats() throws Exception {
+        return metrics.getMetrics().getJSONObject("operations").getJSONObject(OPERATION);
+    }
+
+    private static HttpResponse ok() {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    }
+
+    private static ManagedClientConnection createConnection() {
+        return (ManagedClientConnection) Proxy.newProxyInstance(SiteRequestMetricsTest.class.getClassLoader(),
+                new Class<?>[] { ManagedClientConnection.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StepCompletionTest {
+
+    @Test
+    public void stopDuringCompletionLeavesItToTheWork() {
+        StepCompletion completion = new StepCompletion();
+
+        // a poll claims the completion, then runs completeDeployment
+        assertTrue(completion.claim());
+        // the step is stopped meanwhile
+        assertFalse(completion.stop());
+        assertTrue(completion.isStopped());
+        // succeed or fail take over the claim and complete the context
+        assertTrue(completion.claim());
+    }
+
+    @Test
+    public void stopBeforeCompletionKeepsTheWorkFromCompleting() {
+        StepCompletion completion = new StepCompletion();
+
+        assertTrue(completion.stop());
+        assertFalse(completion.claim());
+        assertFalse(completion.claim());
+    }
+
+    @Test
+    public void repeatedStopsCompleteOnce() {
+        StepCompletion completion = new StepCompletion();
+
+        assertTrue(completion.stop());
+        assertFalse(completion.stop());
+    }
+
+    @Test
+    public void concurrentStopAndCompletionCompleteExactlyOnce() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            final StepCompletion completion = new StepCompletion();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger completions = new AtomicInteger();
+
+            Thread work = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    // claim before completing the deployment, then again from succeed
+                    if (completion.claim() && completion.claim()) {
+                        completions.incrementAndGet();
+                    }
+                }
+            });
+            Thread stop = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    if (completion.stop()) {
+                        completions.incrementAndGet();
+                    }
+                }
+            });
+
+            work.start();
+            stop.start();
+            start.countDown();
+            work.join();
+            stop.join();
+
+            assertEquals(1, completions.get());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}